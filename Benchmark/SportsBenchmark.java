@@ -0,0 +1,168 @@
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the Sports write and query paths over a synthetic catalog.
+ * The catalog size and the Zipf exponent that skews which products are rated
+ * and queried are parameters; a skew of 0 spreads ratings uniformly.
+ * Compile with jmh-generator-annprocess as annotation processor (the JMH profile of
+ * .idea/compiler.xml), then run main, which takes the usual JMH options:
+ * java -cp ... SportsBenchmark -p products=100000 -p skew=1.1
+ * Each trial builds its catalog in setup, about a minute per million products, so a
+ * trial of the 10000000 product catalog spends well over ten minutes in setup and
+ * needs a heap of several GB; main without arguments leaves it out.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SportsBenchmark {
+    private static final int ACTIVITIES = 20;
+    private static final int CATEGORIES = 200;
+    // Queried keys are drawn from a fixed table so sampling stays out of the measurement
+    private static final int SAMPLES = 1 << 16;
+
+    // Catalog sizes main runs when given no arguments, leaving out the slow 10000000 trials
+    private static final String QUICK_PRODUCTS = "1000,100000";
+
+    @Param({"1000", "100000", "10000000"})
+    public int products;
+
+    @Param({"0.0", "1.1"})
+    public double skew;
+
+    @Param({"4"})
+    public int ratingsPerProduct;
+
+    private Sports sports;
+    private String[] productNames;
+    private String[] categoryNames;
+    private String[] activityNames;
+    private String[][] linkedCategories;
+    private int[] productSamples;
+    private int[] categorySamples;
+    private int[] activitySamples;
+
+    // Passes its arguments to JMH; with none, runs the whole suite on the quick catalog sizes
+    public static void main(String[] args) throws Exception {
+        Main.main(args.length > 0 ? args
+                : new String[] {SportsBenchmark.class.getSimpleName(), "-p", "products=" + QUICK_PRODUCTS});
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws SportsException {
+        WorkloadGenerator workload = new WorkloadGenerator(42, ACTIVITIES, CATEGORIES, products,
+                (long) products * ratingsPerProduct).setRatingSkew(skew);
+        sports = new Sports();
+        workload.populate(sports);
+        // Only activities with categories can receive products
+        List<String> linked = new ArrayList<>();
+        for (int i = 0; i < ACTIVITIES; i++) {
+            if (!sports.getCategoriesForActivity(workload.activityName(i)).isEmpty()) {
+                linked.add(workload.activityName(i));
+            }
+        }
+        activityNames = linked.toArray(new String[0]);
+        linkedCategories = new String[activityNames.length][];
+        for (int i = 0; i < activityNames.length; i++) {
+            linkedCategories[i] = sports.getCategoriesForActivity(activityNames[i]).toArray(new String[0]);
+        }
+        categoryNames = new String[CATEGORIES];
+        for (int i = 0; i < CATEGORIES; i++) {
+            categoryNames[i] = workload.categoryName(i);
+        }
+        productNames = new String[products];
+        for (int i = 0; i < products; i++) {
+            productNames[i] = workload.productName(i);
+        }
+
+        SplittableRandom random = new SplittableRandom(43);
+        productSamples = new int[SAMPLES];
+        categorySamples = new int[SAMPLES];
+        activitySamples = new int[SAMPLES];
+        for (int i = 0; i < SAMPLES; i++) {
+            productSamples[i] = WorkloadGenerator.zipf(random, products, skew);
+            categorySamples[i] = WorkloadGenerator.zipf(random, CATEGORIES, skew);
+            activitySamples[i] = WorkloadGenerator.zipf(random, activityNames.length, skew);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+        int added;
+        final SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+
+        int next() {
+            return next++ & (SAMPLES - 1);
+        }
+    }
+
+    @Benchmark
+    public void addProduct(Cursor cursor) throws SportsException {
+        int activity = activitySamples[cursor.next()];
+        String[] categories = linkedCategories[activity];
+        sports.addProduct("added-" + Thread.currentThread().getId() + "-" + cursor.added++,
+                activityNames[activity], categories[cursor.added % categories.length]);
+    }
+
+    @Benchmark
+    public void addRating(Cursor cursor) throws SportsException {
+        sports.addRating(productNames[productSamples[cursor.next()]], "bench", cursor.random.nextInt(6), "benchmark");
+    }
+
+    @Benchmark
+    public List<String> getProductsForCategory(Cursor cursor) {
+        return sports.getProductsForCategory(categoryNames[categorySamples[cursor.next()]]);
+    }
+
+    @Benchmark
+    public List<String> getProducts(Cursor cursor) {
+        int activity = activitySamples[cursor.next()];
+        return sports.getProducts(activityNames[activity], linkedCategories[activity]);
+    }
+
+    @Benchmark
+    public List<String> getRatingsForProduct(Cursor cursor) {
+        return sports.getRatingsForProduct(productNames[productSamples[cursor.next()]]);
+    }
+
+    @Benchmark
+    public double getStarsOfProduct(Cursor cursor) {
+        return sports.getStarsOfProduct(productNames[productSamples[cursor.next()]]);
+    }
+
+    @Benchmark
+    public double averageStars() {
+        return sports.averageStars();
+    }
+
+    @Benchmark
+    public SortedMap<String, Double> starsPerActivity() {
+        return sports.starsPerActivity();
+    }
+
+    @Benchmark
+    public SortedMap<Double, List<String>> getProductsPerStars() {
+        return sports.getProductsPerStars();
+    }
+}
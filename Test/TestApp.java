@@ -1,7 +1,19 @@
+import com.sun.management.ThreadMXBean;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.SortedMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.Assert.*;
 
@@ -92,4 +104,501 @@ public class TestApp {
         SortedMap<Double, List<String>> sml = sports.getProductsPerStars();
         assertEquals("{4.0=[p2], 2.0=[p0, p1]}", sml.toString());
     }
+
+    @Test
+    public void testTopRated() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking","Swimming");
+        sports.addCategory("Pants", "Trekking");
+        sports.addCategory("TShirt", "Trekking");
+        sports.addCategory("Swimsuit", "Swimming");
+        sports.addProduct("p0", "Trekking", "TShirt");
+        sports.addProduct("p1", "Trekking", "Pants");
+        sports.addProduct("p2", "Swimming", "Swimsuit");
+        sports.addProduct("p3", "Trekking", "Pants");
+        sports.addRating("p1", "u1", 2, "Not what described");
+        sports.addRating("p2", "u2", 3, "Reasonable product");
+        sports.addRating("p2", "u1", 5, "Great");
+        sports.addRating("p0", "u3", 2, "Really not a good one");
+
+        // Equal averages are ordered by name and unrated products are left out
+        assertEquals("[p2, p0]", sports.topRatedProducts(2).toString());
+        assertEquals("[p2, p0, p1]", sports.topRatedProducts(10).toString());
+        assertEquals("[]", sports.topRatedProducts(0).toString());
+        assertEquals("[p0]", sports.topRatedProductsForActivity("Trekking", 1).toString());
+        assertEquals("[p0, p1]", sports.topRatedProductsForActivity("Trekking", 5).toString());
+        assertEquals("[p1]", sports.topRatedProductsForCategory("Pants", 5).toString());
+        assertEquals("[]", sports.topRatedProductsForCategory("Socks", 5).toString());
+
+        sports.addRating("p3", "u1", 4, "Fine");
+        sports.addRating("p1", "u2", 5, "Better than expected");
+        assertEquals("[p2, p3, p1]", sports.topRatedProducts(3).toString());
+        assertEquals("[p3, p1]", sports.topRatedProductsForCategory("Pants", 2).toString());
+        try {
+            sports.topRatedProducts(-1);
+            fail("Negative k not detected");
+        } catch(IllegalArgumentException ex){} //ok
+    }
+
+    @Test
+    public void testProductsPerStarsTies() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking");
+        sports.addCategory("Pants", "Trekking");
+        // Names sharing a long prefix, and names beyond Latin-1, sort as strings within an average
+        String[] names = {"trekking-pants-2", "trekking-pants-10", "\u0100pants", "\u00ffpants", "trek", "trekking-pants-1"};
+        for (String name : names) {
+            sports.addProduct(name, "Trekking", "Pants");
+            sports.addRating(name, "u1", 4, null);
+        }
+        sports.addRating("trek", "u2", 2, null);
+        assertEquals("{4.0=[trekking-pants-1, trekking-pants-10, trekking-pants-2, \u00ffpants, \u0100pants], 3.0=[trek]}",
+                sports.getProductsPerStars().toString());
+        assertEquals("[trekking-pants-1, trekking-pants-10]", sports.topRatedProducts(2).toString());
+        sports.addRating("trekking-pants-10", "u2", 5, null);
+        assertEquals("[trekking-pants-10, trekking-pants-1]", sports.topRatedProducts(2).toString());
+    }
+
+    @Test
+    public void testBatchRatings() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking","Swimming");
+        sports.addCategory("Pants", "Trekking");
+        sports.addCategory("Swimsuit", "Swimming");
+        sports.addProduct("p1", "Trekking", "Pants");
+        sports.addProduct("p2", "Swimming", "Swimsuit");
+
+        SortedMap<Integer, SportsException> failures = sports.addRatings(Arrays.asList(
+                new Sports.RatingRow("p1", "u1", 2, "Not what described"),
+                new Sports.RatingRow("p2", "u2", 3, "Reasonable product"),
+                new Sports.RatingRow("p9", "u3", 4, "Unknown product"),
+                new Sports.RatingRow("p2", "u1", 5, "Great"),
+                new Sports.RatingRow("p1", "u3", 7, "Too many stars")));
+        assertEquals("[2, 4]", failures.keySet().toString());
+
+        assertEquals("[5 : Great, 3 : Reasonable product]", sports.getRatingsForProduct("p2").toString());
+        assertEquals(4.0, sports.getStarsOfProduct("p2"), 0.1);
+        assertEquals(10.0 / 3, sports.averageStars(), 0.001);
+        assertEquals("{Swimming=4.0, Trekking=2.0}", sports.starsPerActivity().toString());
+        assertEquals("{4.0=[p2], 2.0=[p1]}", sports.getProductsPerStars().toString());
+    }
+
+    @Test
+    public void testProductPages() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking","Running");
+        sports.addCategory("Pants", "Trekking", "Running");
+        sports.addCategory("Shorts", "Trekking", "Running");
+        sports.addCategory("TShirt", "Trekking");
+        sports.addProduct("p1", "Trekking", "Pants");
+        sports.addProduct("p2", "Trekking", "Shorts");
+        sports.addProduct("p3", "Trekking", "Pants");
+        sports.addProduct("p4", "Running", "Shorts");
+        sports.addProduct("p5", "Trekking", "TShirt");
+
+        assertEquals("[p1]", sports.getProductsForCategory("Pants", null, 1).toString());
+        assertEquals("[p3]", sports.getProductsForCategory("Pants", "p1", 5).toString());
+        assertEquals("[p3]", sports.getProductsForCategory("Pants", "p2", 5).toString());
+        assertEquals("[]", sports.getProductsForCategory("Pants", "p3", 5).toString());
+        assertEquals("[]", sports.getProductsForCategory("Pants", null, 0).toString());
+        assertEquals("[]", sports.getProductsForCategory("Socks", null, 5).toString());
+
+        assertEquals("[p1, p2]", sports.getProductsForActivity("Trekking", null, 2).toString());
+        assertEquals("[p3, p5]", sports.getProductsForActivity("Trekking", "p2", 2).toString());
+        assertEquals("[]", sports.getProductsForActivity("Trekking", "p5", 2).toString());
+        assertEquals("[]", sports.getProductsForActivity("Trekking", "p1", 0).toString());
+
+        // Merged pages cross category boundaries, and a repeated category is listed once
+        assertEquals("[p1, p2, p3, p5]", sports.getProducts("Trekking", "Pants", "TShirt", "Shorts", "Pants").toString());
+        assertEquals("[p1, p2]", sports.getProducts("Trekking", null, 2, "Pants", "Shorts", "Pants").toString());
+        assertEquals("[p3]", sports.getProducts("Trekking", "p2", 2, "Pants", "Shorts", "Pants").toString());
+        assertEquals("[p1, p3]", sports.getProducts("Trekking", null, 5, "Pants", "Pants").toString());
+        assertEquals("[]", sports.getProducts("Trekking", "p3", 5, "Pants", "Shorts").toString());
+        assertEquals("[]", sports.getProducts("Trekking", null, 0, "Pants", "Shorts").toString());
+        assertEquals("[p4]", sports.getProducts("Running", null, 5, "Pants", "Shorts").toString());
+        try {
+            sports.getProducts("Trekking", null, -1, "Pants");
+            fail("Negative limit not detected");
+        } catch(IllegalArgumentException ex){} //ok
+    }
+
+    @Test
+    public void testIngestRating() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking","Swimming");
+        sports.addCategory("Pants", "Trekking");
+        sports.addCategory("Swimsuit", "Swimming");
+        sports.addProduct("p1", "Trekking", "Pants");
+        sports.addProduct("p2", "Swimming", "Swimsuit");
+        sports.addProduct("p3", "Trekking", "Pants");
+
+        sports.ingestRating("p1", "u1", 2, "Not what described");
+        sports.ingestRating("p2", "u2", 3, "Reasonable product");
+        sports.ingestRating("p2", "u1", 5, "Great");
+        // Counters are up to date at once, the star buckets once a query drains the pending products
+        assertEquals(4.0, sports.getStarsOfProduct("p2"), 0.1);
+        assertEquals(10.0 / 3, sports.averageStars(), 0.001);
+        assertEquals("{4.0=[p2], 2.0=[p1]}", sports.getProductsPerStars().toString());
+
+        sports.ingestRating("p1", "u2", 5, "Grew on me");
+        assertEquals("[p2, p1]", sports.topRatedProducts(2).toString());
+        assertEquals("[p1]", sports.topRatedProductsForActivity("Trekking", 1).toString());
+
+        // A product moved by addRating while it still waits in the pending queue ends up in one bucket
+        sports.ingestRating("p3", "u3", 5, "Perfect");
+        sports.addRating("p3", "u1", 1, "Fell apart");
+        sports.ingestRating("p1", "u3", 2, "Meh");
+        assertEquals("{4.0=[p2], 3.0=[p1, p3]}", sports.getProductsPerStars().toString());
+        assertEquals("[p2, p1, p3]", sports.topRatedProducts(5).toString());
+        assertEquals("{Swimming=4.0, Trekking=3.0}", sports.starsPerActivity().toString());
+    }
+
+    @Test
+    public void testRatingPages() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking");
+        sports.addCategory("Pants", "Trekking");
+        sports.addProduct("p1", "Trekking", "Pants");
+        sports.addRating("p1", "u1", 5, "a");
+        sports.addRating("p1", "u2", 3, "b");
+        sports.addRating("p1", "u3", 5, "c");
+        sports.addRating("p1", "u4", 0, "d");
+        sports.addRating("p1", "u5", 3, "e");
+        assertEquals("[5 : a, 5 : c, 3 : b, 3 : e, 0 : d]", sports.getRatingsForProduct("p1").toString());
+
+        assertEquals("[5 : a, 5 : c]", sports.getRatingsForProduct("p1", 0, 2).toString());
+        assertEquals("[3 : b, 3 : e]", sports.getRatingsForProduct("p1", 2, 2).toString());
+        assertEquals("[0 : d]", sports.getRatingsForProduct("p1", 4, 2).toString());
+        assertEquals("[]", sports.getRatingsForProduct("p1", 5, 2).toString());
+        assertEquals("[]", sports.getRatingsForProduct("p1", 1, 0).toString());
+        assertEquals("[]", sports.getRatingsForProduct("p9", 0, 2).toString());
+        assertEquals("[5 : c, 3 : b, 3 : e]",
+                sports.streamRatingsForProduct("p1").skip(1).limit(3).collect(Collectors.toList()).toString());
+
+        Sports.RatingPage page = sports.getRatingsPage("p1", 0, 2);
+        assertEquals("[5 : a, 5 : c]", page.getRatings().toString());
+        assertTrue(page.hasMore());
+        // Ratings listed after the cursor show up in the next pages
+        sports.addRating("p1", "u6", 5, "f");
+        sports.addRating("p1", "u7", 4, "g");
+        page = sports.getRatingsPage("p1", page.getNextCursor(), 2);
+        assertEquals("[5 : f, 4 : g]", page.getRatings().toString());
+        // Ratings listed before the cursor do not shift the next pages, unlike offsets
+        sports.addRating("p1", "u8", 5, "h");
+        assertEquals("[4 : g, 3 : b]", sports.getRatingsForProduct("p1", 4, 2).toString());
+        page = sports.getRatingsPage("p1", page.getNextCursor(), 2);
+        assertEquals("[3 : b, 3 : e]", page.getRatings().toString());
+        assertTrue(page.hasMore());
+        page = sports.getRatingsPage("p1", page.getNextCursor(), 2);
+        assertEquals("[0 : d]", page.getRatings().toString());
+        assertFalse(page.hasMore());
+        page = sports.getRatingsPage("p1", page.getNextCursor(), 2);
+        assertEquals("[]", page.getRatings().toString());
+        assertFalse(page.hasMore());
+
+        // The cursor of an unknown product is the end cursor, past every rating
+        Sports.RatingPage none = sports.getRatingsPage("p9", 0, 2);
+        assertFalse(none.hasMore());
+        page = sports.getRatingsPage("p1", none.getNextCursor(), 2);
+        assertEquals("[]", page.getRatings().toString());
+        assertFalse(page.hasMore());
+        assertEquals(none.getNextCursor(), page.getNextCursor());
+        for (long malformed : new long[] {-1, 0xFFFFFFFFL, (7L << 32), none.getNextCursor() + 1}) {
+            try {
+                sports.getRatingsPage("p1", malformed, 2);
+                fail("Malformed cursor not detected: " + malformed);
+            } catch(IllegalArgumentException ex){} //ok
+        }
+    }
+
+    @Test
+    public void testLogReplay() throws IOException, SportsException {
+        Path file = Files.createTempFile("sports", ".log");
+        try {
+            Sports sports = new Sports();
+            sports.openLog(file);
+            sports.defineActivities("Trekking","Swimming");
+            sports.addCategory("Pants", "Trekking");
+            sports.addCategories(Arrays.asList(new Sports.CategoryRow("Swimsuit", "Swimming")));
+            sports.addProduct("p1", "Trekking", "Pants");
+            sports.addProducts(Arrays.asList(new Sports.ProductRow("p2", "Swimming", "Swimsuit")));
+            sports.addRating("p1", "u1", 2, "Not what described");
+            sports.ingestRating("p2", "u2", 3, null);
+            sports.addRatings(Arrays.asList(new Sports.RatingRow("p2", "u1", 5, "Great")));
+            sports.closeLog();
+            long intact = Files.size(file);
+
+            Sports reopened = new Sports();
+            reopened.openLog(file);
+            assertEquals("[Swimming, Trekking]", reopened.getActivities().toString());
+            assertEquals(2, reopened.countCategories());
+            assertEquals("[p1]", reopened.getProducts("Trekking", "Pants").toString());
+            assertEquals("[p2]", reopened.getProductsForCategory("Swimsuit").toString());
+            assertEquals("[5 : Great, 3 : null]", reopened.getRatingsForProduct("p2").toString());
+            assertEquals(10.0 / 3, reopened.averageStars(), 0.001);
+            assertEquals("{4.0=[p2], 2.0=[p1]}", reopened.getProductsPerStars().toString());
+            reopened.addRating("p1", "u2", 5, "Grew on me");
+            reopened.closeLog();
+            assertTrue(Files.size(file) > intact);
+
+            // A crash in the middle of the last record leaves a torn tail, which is dropped
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(Files.size(file) - 3);
+            }
+            Sports recovered = new Sports();
+            recovered.openLog(file);
+            assertEquals(intact, Files.size(file));
+            assertEquals("[2 : Not what described]", recovered.getRatingsForProduct("p1").toString());
+            assertEquals(10.0 / 3, recovered.averageStars(), 0.001);
+            try {
+                recovered.openLog(file);
+                fail("Log opened twice");
+            } catch(IllegalStateException ex){} //ok
+            recovered.closeLog();
+
+            try {
+                sports.openLog(file);
+                fail("Log opened on a non-empty instance");
+            } catch(IllegalStateException ex){} //ok
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testSnapshotRestore() throws IOException, SportsException {
+        Path file = Files.createTempFile("sports", ".snapshot");
+        Path torn = Files.createTempFile("sports", ".torn");
+        try {
+            Sports sports = new Sports();
+            sports.defineActivities("Trekking","Swimming");
+            sports.addCategory("Pants", "Trekking");
+            sports.addCategory("Swimsuit", "Swimming");
+            sports.addProduct("p1", "Trekking", "Pants");
+            sports.addProduct("p2", "Swimming", "Swimsuit");
+            sports.addProduct("p3", "Trekking", "Pants");
+            sports.snapshot(file);
+            sports.addRating("p1", "u1", 2, "Not what described");
+            sports.addRating("p2", "u2", 3, null);
+            sports.ingestRating("p2", "u1", 5, "Great");
+            // Replaces the earlier snapshot
+            sports.snapshot(file);
+
+            Sports restored = new Sports();
+            restored.restore(file);
+            assertEquals("[Swimming, Trekking]", restored.getActivities().toString());
+            assertEquals("[Pants]", restored.getCategoriesForActivity("Trekking").toString());
+            assertEquals("[p1, p3]", restored.getProductsForActivity("Trekking").toString());
+            assertEquals("[5 : Great, 3 : null]", restored.getRatingsForProduct("p2").toString());
+            assertEquals(10.0 / 3, restored.averageStars(), 0.001);
+            assertEquals("{Swimming=4.0, Trekking=2.0}", restored.starsPerActivity().toString());
+            assertEquals("{4.0=[p2], 2.0=[p1]}", restored.getProductsPerStars().toString());
+            // Users keep their ids, so new ratings by known users line up with restored ones
+            restored.addRating("p3", "u1", 4, "Fine");
+            assertEquals("[4 : Fine]", restored.getRatingsForProduct("p3").toString());
+            assertEquals("[p3, p1]", restored.topRatedProductsForActivity("Trekking", 5).toString());
+            assertEquals("[p2]", restored.topRatedProductsForCategory("Swimsuit", 5).toString());
+            try {
+                restored.restore(file);
+                fail("Restored into a non-empty instance");
+            } catch(IllegalStateException ex){} //ok
+
+            byte[] bytes = Files.readAllBytes(file);
+            Files.write(torn, Arrays.copyOf(bytes, bytes.length - 5));
+            Sports empty = new Sports();
+            try {
+                empty.restore(torn);
+                fail("Torn snapshot not detected");
+            } catch(SportsException ex){} //ok
+            assertEquals(0, empty.getActivities().size());
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(torn);
+        }
+    }
+
+    @Test
+    public void testSnapshotThenLog() throws IOException, SportsException {
+        Path oldLog = Files.createTempFile("sports", ".log");
+        Path snapshot = Files.createTempFile("sports", ".snapshot");
+        Path newLog = Files.createTempFile("sports", ".log");
+        try {
+            Sports sports = new Sports();
+            sports.openLog(oldLog);
+            sports.defineActivities("Trekking");
+            sports.addCategory("Pants", "Trekking");
+            sports.addProduct("p1", "Trekking", "Pants");
+            sports.addRating("p1", "u1", 2, "Not what described");
+            // Log truncation: snapshot with writers paused, then continue on a new log
+            sports.snapshot(snapshot);
+            sports.closeLog();
+
+            Sports node = new Sports();
+            node.restore(snapshot);
+            node.openLog(newLog);
+            node.addProduct("p2", "Trekking", "Pants");
+            node.addRating("p2", "u2", 4, "Fine");
+            node.closeLog();
+            try {
+                node.openLog(oldLog);
+                fail("Log opened on content that depends on another log");
+            } catch(IllegalStateException ex){} //ok
+
+            Sports rebooted = new Sports();
+            rebooted.restore(snapshot);
+            rebooted.openLog(newLog);
+            assertEquals("[p1, p2]", rebooted.getProductsForActivity("Trekking").toString());
+            assertEquals("{4.0=[p2], 2.0=[p1]}", rebooted.getProductsPerStars().toString());
+            assertEquals(3.0, rebooted.averageStars(), 0.001);
+            rebooted.closeLog();
+        } finally {
+            Files.deleteIfExists(oldLog);
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(newLog);
+        }
+    }
+
+    @Test
+    public void testMappedComments() throws IOException, SportsException {
+        Path directory = Files.createTempDirectory("sports-comments");
+        Path file = Files.createTempFile("sports", ".snapshot");
+        try {
+            try (Sports sports = new Sports(directory)) {
+                sports.defineActivities("Trekking");
+                sports.addCategory("Pants", "Trekking");
+                sports.addProduct("p1", "Trekking", "Pants");
+                sports.addRating("p1", "u1", 2, "Not what described");
+                sports.addRating("p1", "u2", 5, null);
+                sports.addRatings(Arrays.asList(new Sports.RatingRow("p1", "u3", 4, "Caf\u00e9 approved"),
+                        new Sports.RatingRow("p1", "u4", 4, "")));
+                assertEquals("[5 : null, 4 : Caf\u00e9 approved, 4 : , 2 : Not what described]",
+                        sports.getRatingsForProduct("p1").toString());
+                sports.snapshot(file);
+            }
+            try (Stream<Path> files = Files.list(directory)) {
+                assertEquals("Segments deleted on close", 0, files.count());
+            }
+
+            try (Sports restored = new Sports(directory)) {
+                restored.restore(file);
+                assertEquals("[5 : null, 4 : Caf\u00e9 approved, 4 : , 2 : Not what described]",
+                        restored.getRatingsForProduct("p1").toString());
+                assertEquals("[4 : Caf\u00e9 approved]", restored.getRatingsForProduct("p1", 1, 1).toString());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    @Test
+    public void testStatsView() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking","Swimming");
+        sports.addCategory("Pants", "Trekking");
+        sports.addCategory("Swimsuit", "Swimming");
+        sports.addProduct("p1", "Trekking", "Pants");
+        sports.addProduct("p2", "Swimming", "Swimsuit");
+        sports.addRating("p1", "u1", 2, "Not what described");
+        sports.addRating("p2", "u2", 3, "Reasonable product");
+
+        Sports.StatsView view = sports.view();
+        assertSame(view, sports.view());
+        sports.addRating("p2", "u1", 5, "Great");
+
+        assertEquals(2, view.getVersion());
+        assertEquals(2.5, view.averageStars(), 0.001);
+        assertEquals(3.0, view.getStarsOfProduct("p2"), 0.1);
+        assertEquals("{3.0=[p2], 2.0=[p1]}", view.getProductsPerStars().toString());
+        assertEquals(sports.starsPerActivity(), sports.view().starsPerActivity());
+        assertEquals(sports.getProductsPerStars(), sports.view().getProductsPerStars());
+    }
+
+    @Test
+    public void testSortedListMapViews() {
+        SortedMap<String, Integer> map = new SortedListMap<>(List.of("b", "d", "f", "h"), List.of(1, 2, 3, 4));
+
+        assertEquals("{d=2, f=3}", map.subMap("c", "h").toString());
+        assertEquals("{b=1, d=2}", map.headMap("f").toString());
+        assertEquals("{f=3, h=4}", map.tailMap("e").toString());
+        assertEquals("{}", map.subMap("d", "d").toString());
+        assertEquals("f", map.tailMap("e").firstKey());
+        assertEquals("d", map.headMap("e").lastKey());
+        assertEquals("{d=2}", map.tailMap("c").headMap("f").toString());
+        try {
+            map.subMap("h", "b");
+            fail("Reversed range not detected");
+        } catch(IllegalArgumentException ex){} //ok
+        try {
+            map.headMap("a").firstKey();
+            fail("Empty view has no first key");
+        } catch(NoSuchElementException ex){} //ok
+    }
+
+    @Test
+    public void testMetrics() throws SportsException {
+        Sports sports = new Sports();
+        sports.defineActivities("Trekking");
+        sports.addCategory("Pants", "Trekking");
+        sports.addProduct("p1", "Trekking", "Pants");
+        HistogramMetrics metrics = new HistogramMetrics();
+        sports.setMetrics(metrics);
+        sports.addProduct("p2", "Trekking", "Pants");
+        sports.addRating("p1", "u1", 2, "Not what described");
+        sports.addRating("p1", "u2", 4, "Good");
+        sports.getProducts("Trekking", "Pants");
+        sports.getRatingsForProduct("p1");
+        sports.getRatingsForProduct("p1", 1, 5);
+        sports.getRatingsPage("p1", 0, 1);
+        assertEquals(2, sports.streamRatingsForProduct("p1").count());
+        sports.setMetrics(null);
+        sports.getRatingsForProduct("p1");
+
+        assertEquals(1, metrics.getCalls(MetricsSink.Operation.ADD_PRODUCT));
+        assertEquals(2, metrics.getCalls(MetricsSink.Operation.ADD_RATING));
+        assertEquals(2, metrics.getSizes(MetricsSink.Operation.ADD_RATING).getMax());
+        assertEquals(1, metrics.getCalls(MetricsSink.Operation.GET_PRODUCTS));
+        assertEquals(2, metrics.getSizes(MetricsSink.Operation.GET_PRODUCTS).getValueAtPercentile(50));
+        assertEquals(4, metrics.getCalls(MetricsSink.Operation.GET_RATINGS_FOR_PRODUCT));
+        assertEquals(1.5, metrics.getSizes(MetricsSink.Operation.GET_RATINGS_FOR_PRODUCT).getMean(), 0.001);
+        assertEquals(0, metrics.getCalls(MetricsSink.Operation.AVERAGE_STARS));
+    }
+
+    @Test
+    public void testParallelStatistics() throws SportsException {
+        Sports sports = new Sports();
+        new WorkloadGenerator(7, 5, 20, 20000, 100000).populate(sports);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertEquals(sports.starsPerActivity(), sports.starsPerActivity(pool));
+            assertEquals(sports.getProductsPerStars(), sports.getProductsPerStars(pool));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testStatisticsDoNotAllocate() throws SportsException {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Sports sports = new Sports();
+        new WorkloadGenerator(3, 5, 20, 1000, 10000).populate(sports);
+        String product = "product0001";
+        final int calls = 100_000;
+        double checksum = 0;
+        // Warm up so class loading and compilation happen outside the measurement
+        for (int i = 0; i < calls; i++) {
+            checksum += sports.averageStars() + sports.getStarsOfProduct(product) + sports.starsPerActivity().size();
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < calls; i++) {
+            checksum += sports.averageStars() + sports.getStarsOfProduct(product) + sports.starsPerActivity().size();
+        }
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+        assertTrue(checksum > 0);
+        // The JVM occasionally allocates about a kilobyte on this thread (compilation, measurement);
+        // one object per call would already be 16 bytes a call, so stay below one byte a call
+        assertTrue("bytes allocated: " + allocated, allocated < calls);
+    }
 }
@@ -0,0 +1,71 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free, append-only sequence of elements stored in chunks of doubling size.
+ * Any number of threads may append concurrently: a slot is reserved with one atomic
+ * increment and the element is published with a release store, so existing chunks
+ * are never copied or resized. Readers see every element published before they
+ * look; slots reserved but not yet written are skipped.
+ */
+class ChunkedAppendBuffer<E> {
+    // Two slots in the first chunk: most products get only a few ratings per star value
+    private static final int FIRST_CHUNK_BITS = 1;
+    static final int MAX_CHUNKS = 31 - FIRST_CHUNK_BITS;
+    static final int CAPACITY = (1 << FIRST_CHUNK_BITS) * ((1 << MAX_CHUNKS) - 1);
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Object[].class);
+
+    private final AtomicReferenceArray<Object[]> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    // Returns the index the element was stored at
+    public int add(E element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        int index = reserved.getAndIncrement();
+        if (index >= CAPACITY) {
+            reserved.decrementAndGet();
+            throw new IllegalStateException("Buffer is full");
+        }
+        int chunk = chunkOf(index);
+        SLOT.setRelease(chunk(chunk), offsetOf(index, chunk), element);
+        return index;
+    }
+
+    // Number of reserved slots; an upper bound of the elements currently visible
+    public int size() {
+        return reserved.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        int chunk = chunkOf(index);
+        Object[] data = chunks.get(chunk);
+        return data == null ? null : (E) SLOT.getAcquire(data, offsetOf(index, chunk));
+    }
+
+    private Object[] chunk(int chunk) {
+        Object[] data = chunks.get(chunk);
+        if (data == null) {
+            chunks.compareAndSet(chunk, null, new Object[chunkLength(chunk)]);
+            data = chunks.get(chunk);
+        }
+        return data;
+    }
+
+    // Chunk k holds the indexes [2^b * (2^k - 1), 2^b * (2^(k+1) - 1)) where b is FIRST_CHUNK_BITS
+    static int chunkOf(int index) {
+        return 31 - Integer.numberOfLeadingZeros((index >>> FIRST_CHUNK_BITS) + 1);
+    }
+
+    static int offsetOf(int index, int chunk) {
+        return index + (1 << FIRST_CHUNK_BITS) - chunkLength(chunk);
+    }
+
+    static int chunkLength(int chunk) {
+        return 1 << (chunk + FIRST_CHUNK_BITS);
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * MetricsSink that keeps a latency histogram and a size histogram per operation;
+ * the call count of an operation is the count of its latency histogram.
+ */
+public class HistogramMetrics implements MetricsSink {
+    private final Histogram[] latencies = new Histogram[Operation.values().length];
+    private final Histogram[] sizes = new Histogram[Operation.values().length];
+
+    public HistogramMetrics() {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new Histogram();
+            sizes[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void record(Operation operation, long latencyNanos, long size) {
+        latencies[operation.ordinal()].record(latencyNanos);
+        sizes[operation.ordinal()].record(size);
+    }
+
+    public long getCalls(Operation operation) {
+        return latencies[operation.ordinal()].getCount();
+    }
+
+    public Histogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+
+    public Histogram getSizes(Operation operation) {
+        return sizes[operation.ordinal()];
+    }
+
+    // One line per operation that was called, latencies in nanoseconds
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        for (Operation operation : Operation.values()) {
+            if (getCalls(operation) > 0) {
+                report.append(operation).append(": latency ").append(getLatency(operation))
+                        .append(", size ").append(getSizes(operation)).append('\n');
+            }
+        }
+        return report.toString();
+    }
+}
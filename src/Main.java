@@ -1,5 +1,27 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
 public class Main {
-    public static void main(String[] args) {
-        System.out.println("Hello world!");
+    // Usage: Main [products [ratings [seed [file]]]]; with a file the workload is written there instead of loaded
+    public static void main(String[] args) throws Exception {
+        int products = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        long ratings = args.length > 1 ? Long.parseLong(args[1]) : 10L * products;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        WorkloadGenerator workload = new WorkloadGenerator(seed, 20, 200, products, ratings);
+        long start = System.nanoTime();
+        if (args.length > 3) {
+            Path file = Paths.get(args[3]);
+            workload.write(file);
+            System.out.printf("Wrote %d products and %d ratings to %s in %d ms%n",
+                    products, ratings, file, (System.nanoTime() - start) / 1_000_000);
+            return;
+        }
+        Sports sports = new Sports();
+        workload.populate(sports);
+        System.out.printf("Loaded %d products and %d ratings in %d ms%n",
+                products, ratings, (System.nanoTime() - start) / 1_000_000);
+        System.out.println("Average stars: " + sports.averageStars());
+        System.out.println("Stars per activity: " + sports.starsPerActivity());
+        System.out.println("Top rated: " + sports.topRatedProducts(5));
     }
-}
\ No newline at end of file
+}
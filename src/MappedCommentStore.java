@@ -0,0 +1,114 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Append-only comment storage outside the Java heap, in memory-mapped segment
+ * files of a directory. A comment is written once as a length-prefixed UTF-8
+ * record and is addressed by the long offset of that record; space is reserved
+ * with one atomic add, so concurrent writers never lock each other out except
+ * while a new segment is being mapped. A record never spans two segments.
+ */
+class MappedCommentStore implements Closeable {
+    static final int SEGMENT_SIZE = 1 << 26;
+    private static final int MAX_SEGMENTS = 1 << 16;
+    private static final int NULL_LENGTH = -1;
+
+    private final Path directory;
+    private final AtomicReferenceArray<MappedByteBuffer> segments = new AtomicReferenceArray<>(MAX_SEGMENTS);
+    private final AtomicLong reserved = new AtomicLong();
+    // Guarded by this
+    private boolean closed;
+
+    MappedCommentStore(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+    }
+
+    long append(String comment) {
+        byte[] bytes = comment == null ? new byte[0] : comment.getBytes(StandardCharsets.UTF_8);
+        int length = Integer.BYTES + bytes.length;
+        if (length > SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Comment too long");
+        }
+        while (true) {
+            long offset = reserved.getAndAdd(length);
+            int position = (int) (offset % SEGMENT_SIZE);
+            if (position + length > SEGMENT_SIZE) {
+                // Leaves the tail of this segment unused and retries in the next one
+                continue;
+            }
+            MappedByteBuffer segment = segment((int) (offset / SEGMENT_SIZE));
+            segment.putInt(position, comment == null ? NULL_LENGTH : bytes.length);
+            segment.put(position + Integer.BYTES, bytes);
+            return offset;
+        }
+    }
+
+    String read(long offset) {
+        MappedByteBuffer segment = segments.get((int) (offset / SEGMENT_SIZE));
+        if (segment == null) {
+            throw new IllegalStateException("Comment store is closed");
+        }
+        int position = (int) (offset % SEGMENT_SIZE);
+        int length = segment.getInt(position);
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        segment.get(position + Integer.BYTES, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private MappedByteBuffer segment(int index) {
+        if (index >= MAX_SEGMENTS) {
+            throw new IllegalStateException("Comment store is full");
+        }
+        MappedByteBuffer segment = segments.get(index);
+        if (segment != null) {
+            return segment;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Comment store is closed");
+            }
+            segment = segments.get(index);
+            if (segment == null) {
+                try (FileChannel channel = FileChannel.open(segmentFile(index), StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                segments.set(index, segment);
+            }
+            return segment;
+        }
+    }
+
+    private Path segmentFile(int index) {
+        return directory.resolve(String.format("comments-%05d.seg", index));
+    }
+
+    /**
+     * Drops every segment and deletes its file; comments can be neither read nor
+     * appended afterwards. Java offers no explicit unmap, so each mapping is released
+     * once its dropped buffer is collected rather than when this method returns.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        for (int index = 0; index < MAX_SEGMENTS; index++) {
+            if (segments.getAndSet(index, null) != null) {
+                Files.deleteIfExists(segmentFile(index));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Sequential reader of big-endian ints and length-prefixed UTF-8 strings from a
+ * file, through a read-only memory-mapped window that slides forward as the file
+ * is consumed. Files of any size can be read; a single value must fit a window.
+ */
+class MappedInput implements Closeable {
+    private static final int WINDOW = 1 << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    MappedInput(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        size = channel.size();
+        map(0);
+    }
+
+    int readInt() throws IOException {
+        ensure(Integer.BYTES);
+        return window.getInt();
+    }
+
+    // Reads a string written as an int byte count, -1 for null, followed by UTF-8 bytes
+    String readString() throws IOException {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        ensure(length);
+        byte[] bytes = new byte[length];
+        window.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Int at an absolute position, read without moving the window
+    int intAt(long position) throws IOException {
+        if (position < 0 || position + Integer.BYTES > size) {
+            throw new EOFException();
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(Integer.BYTES);
+        while (bytes.hasRemaining()) {
+            if (channel.read(bytes, position + bytes.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return bytes.getInt(0);
+    }
+
+    // CRC32 of the first length bytes of the file, mapped a window at a time
+    int crc32(long length) throws IOException {
+        CRC32 crc = new CRC32();
+        for (long position = 0; position < length; position += WINDOW) {
+            crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, length - position)));
+        }
+        return (int) crc.getValue();
+    }
+
+    private void ensure(int bytes) throws IOException {
+        if (window.remaining() >= bytes) {
+            return;
+        }
+        long position = windowStart + window.position();
+        if (position + bytes > size) {
+            throw new EOFException();
+        }
+        map(position);
+    }
+
+    private void map(long position) throws IOException {
+        windowStart = position;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
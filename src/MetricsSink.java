@@ -0,0 +1,31 @@
+/**
+ * Receives one event per completed call of an instrumented Sports method. Called on
+ * the caller's thread in the hot path, so implementations must be thread-safe and
+ * should neither block nor allocate.
+ */
+public interface MetricsSink {
+    /**
+     * @param latencyNanos time spent in the call
+     * @param size         entries returned or rows written; for addRating, ingestRating and
+     *                     getStarsOfProduct the number of ratings of the product; for
+     *                     ratingsIterator and streamRatingsForProduct, which are recorded
+     *                     when created, the number of ratings the product had then
+     */
+    void record(Operation operation, long latencyNanos, long size);
+
+    enum Operation {
+        ADD_PRODUCT,
+        ADD_PRODUCTS,
+        ADD_RATING,
+        INGEST_RATING,
+        ADD_RATINGS,
+        GET_PRODUCTS_FOR_CATEGORY,
+        GET_PRODUCTS_FOR_ACTIVITY,
+        GET_PRODUCTS,
+        GET_RATINGS_FOR_PRODUCT,
+        GET_STARS_OF_PRODUCT,
+        AVERAGE_STARS,
+        STARS_PER_ACTIVITY,
+        GET_PRODUCTS_PER_STARS
+    }
+}
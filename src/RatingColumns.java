@@ -0,0 +1,156 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * Lock-free, append-only column store for the ratings of one product with one star
+ * value. Instead of one object per rating, each chunk holds an int[] of user ids and
+ * a parallel column of comments; the stars themselves are implied by the bucket.
+ * Comments are kept on the heap as preformatted listing lines ("stars : comment"),
+ * or, when a MappedCommentStore is given, as long offsets into that store and
+ * formatted when read. Chunks follow the doubling layout of ChunkedAppendBuffer.
+ * A slot is published by a release store of its user column, holding the user id
+ * plus two so that zero marks a slot reserved but not yet written. The chunk
+ * directory is copied on write and swapped with a CAS, so it only grows as long as
+ * the chunks it holds; most products have few ratings per star value.
+ */
+class RatingColumns {
+    private static final VarHandle USER = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final AtomicReferenceFieldUpdater<RatingColumns, Chunk[]> CHUNKS =
+            AtomicReferenceFieldUpdater.newUpdater(RatingColumns.class, Chunk[].class, "chunks");
+    private static final AtomicIntegerFieldUpdater<RatingColumns> RESERVED =
+            AtomicIntegerFieldUpdater.newUpdater(RatingColumns.class, "reserved");
+    private static final Chunk[] NO_CHUNKS = new Chunk[0];
+    // Read-only stand-in for the columns of a star value that has no rating yet
+    static final RatingColumns EMPTY = new RatingColumns(0, null);
+    // Length of the "stars : " prefix of a listing line
+    private static final int LINE_PREFIX = line(0, "").length();
+
+    private final int stars;
+    private final MappedCommentStore comments;
+    private volatile Chunk[] chunks = NO_CHUNKS;
+    private volatile int reserved;
+
+    RatingColumns(int stars, MappedCommentStore comments) {
+        this.stars = stars;
+        this.comments = comments;
+    }
+
+    public void add(int user, String comment) {
+        int index = reserve(1);
+        int chunk = ChunkedAppendBuffer.chunkOf(index);
+        set(chunk(chunk), ChunkedAppendBuffer.offsetOf(index, chunk), user, comment);
+    }
+
+    // Reserves all slots with a single atomic add, allocating every chunk they need up front
+    public void addAll(int[] users, String[] comments, int count) {
+        if (count == 0) {
+            return;
+        }
+        int first = reserve(count);
+        int chunk = ChunkedAppendBuffer.chunkOf(first);
+        Chunk data = chunk(chunk);
+        int offset = ChunkedAppendBuffer.offsetOf(first, chunk);
+        for (int i = 0; i < count; i++) {
+            if (offset == data.users.length) {
+                data = chunk(++chunk);
+                offset = 0;
+            }
+            set(data, offset++, users[i], comments[i]);
+        }
+    }
+
+    // Number of reserved slots; an upper bound of the ratings currently visible
+    public int size() {
+        return reserved;
+    }
+
+    public boolean isPublished(int index) {
+        int chunk = ChunkedAppendBuffer.chunkOf(index);
+        Chunk data = published(chunk);
+        return data != null && (int) USER.getAcquire(data.users, ChunkedAppendBuffer.offsetOf(index, chunk)) != 0;
+    }
+
+    // User id of a published slot
+    public int user(int index) {
+        int chunk = ChunkedAppendBuffer.chunkOf(index);
+        return (int) USER.getAcquire(published(chunk).users, ChunkedAppendBuffer.offsetOf(index, chunk)) - 2;
+    }
+
+    // Listing line of a published slot
+    public String line(int index) {
+        int chunk = ChunkedAppendBuffer.chunkOf(index);
+        Chunk data = published(chunk);
+        int offset = ChunkedAppendBuffer.offsetOf(index, chunk);
+        return comments == null ? data.lines[offset] : line(stars, comments.read(data.comments[offset]));
+    }
+
+    // Comment of a published slot; a null comment kept on the heap reads back as "null", as it is listed
+    public String comment(int index) {
+        int chunk = ChunkedAppendBuffer.chunkOf(index);
+        Chunk data = published(chunk);
+        int offset = ChunkedAppendBuffer.offsetOf(index, chunk);
+        return comments == null ? data.lines[offset].substring(LINE_PREFIX) : comments.read(data.comments[offset]);
+    }
+
+    static String line(int stars, String comment) {
+        return stars + " : " + comment;
+    }
+
+    private void set(Chunk data, int offset, int user, String comment) {
+        if (comments == null) {
+            data.lines[offset] = line(stars, comment);
+        } else {
+            data.comments[offset] = comments.append(comment);
+        }
+        USER.setRelease(data.users, offset, user + 2);
+    }
+
+    private int reserve(int count) {
+        int first = RESERVED.getAndAdd(this, count);
+        if (first < 0 || first > ChunkedAppendBuffer.CAPACITY - count) {
+            RESERVED.getAndAdd(this, -count);
+            throw new IllegalStateException("Rating columns are full");
+        }
+        return first;
+    }
+
+    private Chunk published(int chunk) {
+        Chunk[] directory = chunks;
+        return chunk < directory.length ? directory[chunk] : null;
+    }
+
+    private Chunk chunk(int chunk) {
+        Chunk created = null;
+        while (true) {
+            Chunk[] directory = chunks;
+            if (chunk < directory.length && directory[chunk] != null) {
+                return directory[chunk];
+            }
+            if (created == null) {
+                created = new Chunk(ChunkedAppendBuffer.chunkLength(chunk), comments != null);
+            }
+            // Published arrays are never written, so a writer that loses the CAS retries on the winner's copy
+            Chunk[] grown = Arrays.copyOf(directory, Math.max(directory.length, chunk + 1));
+            grown[chunk] = created;
+            if (CHUNKS.compareAndSet(this, directory, grown)) {
+                return created;
+            }
+        }
+    }
+
+    // Exactly one of lines and comments is allocated, depending on where comments live
+    private static class Chunk {
+        final int[] users;
+        final String[] lines;
+        final long[] comments;
+
+        Chunk(int length, boolean mapped) {
+            users = new int[length];
+            lines = mapped ? null : new String[length];
+            comments = mapped ? new long[length] : null;
+        }
+    }
+}
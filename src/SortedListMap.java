@@ -0,0 +1,102 @@
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+
+/**
+ * Read-only SortedMap view over keys already in strictly ascending natural order.
+ * Handing it to the TreeMap or ConcurrentSkipListMap copy constructors lets them
+ * build their structure in linear time instead of inserting entry by entry.
+ * Range views are sub-lists found by binary search; their bounds are not checked
+ * against the bounds of the view they were taken from.
+ */
+class SortedListMap<K, V> extends AbstractMap<K, V> implements SortedMap<K, V> {
+    private final List<K> keys;
+    private final List<V> values;
+
+    SortedListMap(List<K> keys, List<V> values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    @Override
+    public Comparator<? super K> comparator() {
+        return null;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new Iterator<>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.size();
+                    }
+
+                    @Override
+                    public Map.Entry<K, V> next() {
+                        Map.Entry<K, V> entry = new SimpleImmutableEntry<>(keys.get(next), values.get(next));
+                        next++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.size();
+            }
+        };
+    }
+
+    @Override
+    public K firstKey() {
+        if (keys.isEmpty()) throw new NoSuchElementException();
+        return keys.get(0);
+    }
+
+    @Override
+    public K lastKey() {
+        if (keys.isEmpty()) throw new NoSuchElementException();
+        return keys.get(keys.size() - 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+        if (((Comparable<? super K>) fromKey).compareTo(toKey) > 0) {
+            throw new IllegalArgumentException("fromKey > toKey");
+        }
+        return range(lowerBound(fromKey), lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+        return range(0, lowerBound(toKey));
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+        return range(lowerBound(fromKey), keys.size());
+    }
+
+    /** Index of the first key not below the given one. */
+    private int lowerBound(K key) {
+        int index = Collections.binarySearch(keys, key, null);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private SortedMap<K, V> range(int from, int to) {
+        return new SortedListMap<>(keys.subList(from, to), values.subList(from, to));
+    }
+}
@@ -1,19 +1,441 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
-public class Sports {
-    private Set<String> activities = new TreeSet<>();
-    private Map<String, Set<String>> categoryToActivities = new TreeMap<>();
-    private Map<String, Set<String>> activityToCategories = new TreeMap<>();
-    private Map<String, Product> products = new TreeMap<>();
-    private Map<String, List<Rating>> productRatings = new HashMap<>();
+/**
+ * Thread-safe sports equipment portal.
+ * Catalog structures are concurrent skip lists and hash maps, ratings are appended
+ * lock-free to per-product buffers and every query method reads without locking,
+ * seeing a weakly consistent view while writes are in flight. Moving a product
+ * within the products-per-stars index holds that product's monitor, so only
+ * writers rating the same product wait for each other.
+ */
+public class Sports implements Closeable {
+    // Header of files written by snapshot
+    private static final int SNAPSHOT_MAGIC = 0x53504F52;
+    private static final int SNAPSHOT_VERSION = 2;
+    // Trailer of files written by snapshot: CRC32 of everything before it, then SNAPSHOT_END
+    private static final int SNAPSHOT_END = 0x454E4421;
+    private static final int SNAPSHOT_TRAILER = 2 * Integer.BYTES;
+    private static final long NOT_TIMED = Long.MIN_VALUE;
+
+    private final Set<String> activities = new ConcurrentSkipListSet<>();
+    // Catalog writers serialize on catalogLock so bulk loads may swap in freshly built maps
+    private final Object catalogLock = new Object();
+    private volatile ConcurrentNavigableMap<String, Set<String>> categoryToActivities = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Set<String>> activityToCategories = new ConcurrentSkipListMap<>();
+    private volatile ConcurrentNavigableMap<String, Product> products = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, ProductRatings> productRatings = new ConcurrentHashMap<>();
+    // Products and ratings refer to activities, categories and users by these dense ids
+    private final SymbolTable activityIds = new SymbolTable();
+    private final SymbolTable categoryIds = new SymbolTable();
+    private final SymbolTable userIds = new SymbolTable();
+    // Indexed by activity id; grown under catalogLock before the new activity becomes visible
+    private volatile ActivityStats[] activityStats = new ActivityStats[0];
+    // Rated products ordered by their current average, best average first
+    private final StarIndex productsPerStars = new StarIndex();
+    // The same ordering per activity id and per category id, grown under catalogLock
+    private volatile StarIndex[] activityProductsPerStars = new StarIndex[0];
+    private volatile StarIndex[] categoryProductsPerStars = new StarIndex[0];
+    // Products rated through ingestRating whose place in the star index has not been updated yet
+    private final Queue<ProductRatings> unindexedRatings = new ConcurrentLinkedQueue<>();
+    // Global rating counters; LongAdder keeps concurrent writers off a single cell
+    private final LongAdder ratingCount = new LongAdder();
+    private final LongAdder starSum = new LongAdder();
+    // Secondary indexes kept up to date by addProduct: owner -> products sorted by name
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, Product>> categoryToProducts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, Product>> activityToProducts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentNavigableMap<String, Product>>> activityCategoryToProducts = new ConcurrentHashMap<>();
+    // Off-heap storage for rating comments, or null to keep them on the heap
+    private final MappedCommentStore comments;
+    // Durable log of mutations, or null while none is open
+    private volatile WriteAheadLog log;
+    // Set by openLog while it replays, so a second openLog or a restore cannot run meanwhile
+    private boolean opening;
+    // Set by restore until a log is opened, which may then start from the restored content
+    private boolean restored;
+    // Receives call timings and sizes, or null while metrics are disabled
+    private volatile MetricsSink metrics;
+    // Latest starsPerActivity result, reused until another rating is counted
+    private volatile ActivityAverages activityAverages = new ActivityAverages(0, Collections.emptySortedMap());
+    // Latest statistics view, reused by view() until another rating is counted
+    private volatile StatsView statsView = new StatsView(0, new String[0], new String[0], new long[0]);
+
+    public Sports() {
+        this.comments = null;
+    }
+
+    /**
+     * Creates a portal that keeps rating comments off the heap, in memory-mapped
+     * segment files under {@code commentDirectory}. Existing segment files there
+     * are overwritten.
+     */
+    public Sports(Path commentDirectory) throws IOException {
+        this.comments = new MappedCommentStore(commentDirectory);
+    }
+
+    // Metrics
+
+    /**
+     * Reports every completed call of the main catalog, rating and statistics methods
+     * to {@code sink}, or stops reporting when it is null. While disabled an
+     * instrumented call costs one volatile read and a branch.
+     */
+    public void setMetrics(MetricsSink sink) {
+        metrics = sink;
+    }
+
+    private long startTimer() {
+        return metrics == null ? NOT_TIMED : System.nanoTime();
+    }
+
+    private void record(MetricsSink.Operation operation, long start, long size) {
+        MetricsSink sink = metrics;
+        if (start != NOT_TIMED && sink != null) {
+            sink.record(operation, System.nanoTime() - start, size);
+        }
+    }
+
+    // Persistence
+
+    /**
+     * Rebuilds the state recorded in {@code logFile} by replaying it, then appends
+     * every further mutation to it. A mutation is on disk when its method returns;
+     * concurrent writers share each fsync. A torn record at the end of the file,
+     * left by a crash, is dropped. The instance must be empty, since its current
+     * content would never reach the log, unless it was just loaded by restore: the
+     * log is then replayed on top of the snapshot, so a node boots from its latest
+     * snapshot and the log written since. To truncate a log, pause writers, take a
+     * snapshot, close the log and move on to a new, empty one; after a crash,
+     * restore that snapshot and open the new log. The instance must not be written
+     * to until this method returns.
+     */
+    public void openLog(Path logFile) throws IOException, SportsException {
+        synchronized (catalogLock) {
+            if (log != null || opening) {
+                throw new IllegalStateException("Log already open");
+            }
+            if (!restored && (!activities.isEmpty() || userIds.size() > 0)) {
+                throw new IllegalStateException("Opening a log requires an empty or restored instance");
+            }
+            // The content now depends on this log, so no other log may start from it
+            restored = false;
+            opening = true;
+        }
+        WriteAheadLog opened = null;
+        try {
+            opened = WriteAheadLog.open(logFile, this);
+        } finally {
+            synchronized (catalogLock) {
+                log = opened;
+                opening = false;
+            }
+        }
+    }
+
+    public void closeLog() throws IOException {
+        WriteAheadLog closing;
+        synchronized (catalogLock) {
+            closing = log;
+            log = null;
+        }
+        if (closing != null) {
+            closing.close();
+        }
+    }
+
+    /**
+     * Closes the log, if one is open, and releases the comment segments of a portal
+     * created with a comment directory, whose ratings cannot be read afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            closeLog();
+        } finally {
+            if (comments != null) {
+                comments.close();
+            }
+        }
+    }
+
+    /**
+     * Writes activities, categories, products and ratings to {@code file} in a compact
+     * length-prefixed binary format. Aggregates are not stored separately: they follow
+     * from the per-star rating counts, so restore rebuilds them without revisiting
+     * single ratings. Writes running concurrently may or may not be included. The
+     * file is written and synced under a temporary name, then atomically moved over
+     * {@code file}, so a crash leaves either the previous snapshot or the new one.
+     */
+    public void snapshot(Path file) throws IOException {
+        reindexPending();
+        Path temp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                CheckedOutputStream checked = new CheckedOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+                DataOutputStream out = new DataOutputStream(checked);
+                writeSnapshot(out);
+                out.writeInt((int) checked.getChecksum().getValue());
+                out.writeInt(SNAPSHOT_END);
+                out.flush();
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writeSnapshot(DataOutputStream out) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeInt(SNAPSHOT_VERSION);
+        List<String> activityNames = getActivities();
+        out.writeInt(activityNames.size());
+        for (String activity : activityNames) {
+            writeString(out, activity);
+        }
+        // Categories in name order, ready for the linear bulk load
+        List<Map.Entry<String, Set<String>>> categories = new ArrayList<>(categoryToActivities.entrySet());
+        out.writeInt(categories.size());
+        for (Map.Entry<String, Set<String>> entry : categories) {
+            writeString(out, entry.getKey());
+            writeStrings(out, entry.getValue());
+        }
+        out.writeInt(activityToCategories.size());
+        for (Map.Entry<String, Set<String>> entry : activityToCategories.entrySet()) {
+            writeString(out, entry.getKey());
+            writeStrings(out, entry.getValue());
+        }
+        // Products in name order; ratings refer to them by position
+        List<Product> catalog = new ArrayList<>(products.values());
+        out.writeInt(catalog.size());
+        for (Product product : catalog) {
+            writeString(out, product.name);
+            writeString(out, activityIds.name(product.activity));
+            writeString(out, categoryIds.name(product.category));
+        }
+        List<Integer> rated = new ArrayList<>();
+        for (int i = 0; i < catalog.size(); i++) {
+            if (productRatings.containsKey(catalog.get(i).name)) {
+                rated.add(i);
+            }
+        }
+        out.writeInt(rated.size());
+        for (int i : rated) {
+            out.writeInt(i);
+            ProductRatings ratings = productRatings.get(catalog.get(i).name);
+            for (int stars = 0; stars <= 5; stars++) {
+                RatingColumns bucket = ratings.column(stars);
+                int size = bucket.size();
+                int published = 0;
+                for (int slot = 0; slot < size; slot++) {
+                    if (bucket.isPublished(slot)) {
+                        published++;
+                    }
+                }
+                out.writeInt(published);
+                // Slots stay published once seen, so this pass finds at least as many
+                for (int slot = 0; slot < size && published > 0; slot++) {
+                    if (bucket.isPublished(slot)) {
+                        out.writeInt(bucket.user(slot));
+                        writeString(out, bucket.comment(slot));
+                        published--;
+                    }
+                }
+            }
+        }
+        // Users last and in id order, so every user id written above is covered and stays valid once restored
+        int userCount = userIds.size();
+        out.writeInt(userCount);
+        for (int id = 0; id < userCount; id++) {
+            writeString(out, userIds.name(id));
+        }
+    }
+
+    /**
+     * Loads a file written by snapshot into this instance, which must be empty and
+     * have no log open. The file is read through a memory-mapped window, products are
+     * bulk loaded in linear time and each product's ratings are appended per star.
+     * Afterwards openLog accepts the instance and replays a log written since the
+     * snapshot on top of it.
+     */
+    public void restore(Path file) throws IOException, SportsException {
+        synchronized (catalogLock) {
+            if (log != null || opening || !activities.isEmpty() || userIds.size() > 0) {
+                throw new IllegalStateException("Restore requires an empty instance without a log");
+            }
+        }
+        try (MappedInput in = new MappedInput(file)) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                throw new SportsException("Not a snapshot file: " + file);
+            }
+            // Checked before anything is loaded, so a torn or corrupt file leaves this instance empty
+            long end = in.size() - SNAPSHOT_TRAILER;
+            if (in.intAt(end + Integer.BYTES) != SNAPSHOT_END || in.intAt(end) != in.crc32(end)) {
+                throw new SportsException("Incomplete or corrupt snapshot file: " + file);
+            }
+            String[] activityNames = readStrings(in, in.readInt());
+            if (activityNames.length > 0) {
+                defineActivities(activityNames);
+            }
+            int categoryCount = in.readInt();
+            List<CategoryRow> categories = new ArrayList<>(categoryCount);
+            for (int i = 0; i < categoryCount; i++) {
+                categories.add(new CategoryRow(in.readString(), readStrings(in, in.readInt())));
+            }
+            addCategories(categories);
+            // Links of categories that were redefined with fewer activities
+            int linkCount = in.readInt();
+            for (int i = 0; i < linkCount; i++) {
+                String activity = in.readString();
+                activityToCategories.computeIfAbsent(activity, k -> new ConcurrentSkipListSet<>())
+                        .addAll(Arrays.asList(readStrings(in, in.readInt())));
+            }
+            int productCount = in.readInt();
+            List<ProductRow> rows = new ArrayList<>(productCount);
+            for (int i = 0; i < productCount; i++) {
+                rows.add(new ProductRow(in.readString(), in.readString(), in.readString()));
+            }
+            addProducts(rows);
+            int ratedCount = in.readInt();
+            for (int i = 0; i < ratedCount; i++) {
+                String name = rows.get(in.readInt()).name;
+                RatingGroup group = new RatingGroup();
+                for (int stars = 0; stars <= 5; stars++) {
+                    int count = in.readInt();
+                    for (int slot = 0; slot < count; slot++) {
+                        group.add(group.size, in.readInt(), stars, in.readString());
+                    }
+                }
+                Product product = products.get(name);
+                ProductRatings ratings = new ProductRatings(product, comments);
+                productRatings.put(name, ratings);
+                ratings.addAll(group);
+                activityStats[product.activity].add(group.size, group.sum);
+                ratingCount.add(group.size);
+                starSum.add(group.sum);
+                reindex(ratings);
+            }
+            // Appended in the same order, unused ids included, so the restored ratings keep naming the right users
+            int userCount = in.readInt();
+            for (int i = 0; i < userCount; i++) {
+                userIds.append(in.readString());
+            }
+        }
+        synchronized (catalogLock) {
+            restored = true;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(utf8.length);
+            out.write(utf8);
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> values) throws IOException {
+        out.writeInt(values.size());
+        for (String value : values) {
+            writeString(out, value);
+        }
+    }
+
+    private static String[] readStrings(MappedInput in, int count) throws IOException {
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = in.readString();
+        }
+        return values;
+    }
+
+    private static void awaitLogged(WriteAheadLog wal, long ticket) {
+        if (wal != null) {
+            try {
+                wal.awaitDurable(ticket);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+    }
 
     // R1: Activities and Categories
     public void defineActivities(String... activities) throws SportsException {
         if (activities == null || activities.length == 0) {
             throw new SportsException("No activity provided");
         }
-        this.activities.addAll(Arrays.asList(activities));
+        WriteAheadLog wal;
+        long ticket = 0;
+        synchronized (catalogLock) {
+            wal = log;
+            if (wal != null) {
+                ticket = wal.enqueue(WriteAheadLog.defineActivities(activities));
+            }
+            for (String act : activities) {
+                activityIds.intern(act);
+            }
+            int defined = activityIds.size();
+            ActivityStats[] stats = Arrays.copyOf(activityStats, defined);
+            for (int id = activityStats.length; id < defined; id++) {
+                stats[id] = new ActivityStats();
+            }
+            activityStats = stats;
+            activityProductsPerStars = grow(activityProductsPerStars, defined);
+            this.activities.addAll(Arrays.asList(activities));
+        }
+        awaitLogged(wal, ticket);
+    }
+
+    // Interns new category names; call under catalogLock
+    private void internCategories(List<String> names) {
+        for (String name : names) {
+            categoryIds.intern(name);
+        }
+        categoryProductsPerStars = grow(categoryProductsPerStars, categoryIds.size());
+    }
+
+    // Copy of indexes with a fresh index for every id up to size
+    private static StarIndex[] grow(StarIndex[] indexes, int size) {
+        if (indexes.length >= size) {
+            return indexes;
+        }
+        StarIndex[] grown = Arrays.copyOf(indexes, size);
+        for (int id = indexes.length; id < size; id++) {
+            grown[id] = new StarIndex();
+        }
+        return grown;
     }
 
     public List<String> getActivities() {
@@ -26,11 +448,65 @@ public class Sports {
                 throw new SportsException("Activity not defined: " + act);
             }
         }
-        categoryToActivities.put(name, new TreeSet<>(Arrays.asList(linkedActivities)));
-        for (String act : linkedActivities) {
-            activityToCategories.putIfAbsent(act, new TreeSet<>());
-            activityToCategories.get(act).add(name);
+        WriteAheadLog wal;
+        long ticket = 0;
+        synchronized (catalogLock) {
+            wal = log;
+            if (wal != null) {
+                ticket = wal.enqueue(WriteAheadLog.addCategory(name, linkedActivities));
+            }
+            internCategories(Collections.singletonList(name));
+            categoryToActivities.put(name, Collections.unmodifiableSortedSet(new TreeSet<>(Arrays.asList(linkedActivities))));
+            for (String act : linkedActivities) {
+                activityToCategories.computeIfAbsent(act, k -> new ConcurrentSkipListSet<>()).add(name);
+            }
         }
+        awaitLogged(wal, ticket);
+    }
+
+    /**
+     * Bulk variant of addCategory for cold starts. Rows must be sorted by category
+     * name; they are validated in a single sweep before anything is applied, and into
+     * an empty catalog the category map is built in linear time.
+     */
+    public void addCategories(List<CategoryRow> rows) throws SportsException {
+        String previous = null;
+        for (CategoryRow row : rows) {
+            if (previous != null && row.name.compareTo(previous) <= 0) {
+                throw new SportsException("Categories not sorted by name: " + row.name);
+            }
+            for (String act : row.activities) {
+                if (!activities.contains(act)) {
+                    throw new SportsException("Activity not defined: " + act);
+                }
+            }
+            previous = row.name;
+        }
+        List<String> names = new ArrayList<>(rows.size());
+        List<Set<String>> linked = new ArrayList<>(rows.size());
+        Map<String, List<String>> byActivity = new HashMap<>();
+        for (CategoryRow row : rows) {
+            names.add(row.name);
+            linked.add(Collections.unmodifiableSortedSet(new TreeSet<>(row.activities)));
+            for (String act : row.activities) {
+                byActivity.computeIfAbsent(act, k -> new ArrayList<>()).add(row.name);
+            }
+        }
+        WriteAheadLog wal;
+        long ticket = 0;
+        synchronized (catalogLock) {
+            wal = log;
+            if (wal != null) {
+                ticket = wal.enqueue(WriteAheadLog.addCategories(rows));
+            }
+            internCategories(names);
+            categoryToActivities = merge(categoryToActivities, names, linked);
+            for (Map.Entry<String, List<String>> entry : byActivity.entrySet()) {
+                activityToCategories.computeIfAbsent(entry.getKey(), k -> new ConcurrentSkipListSet<>())
+                        .addAll(entry.getValue());
+            }
+        }
+        awaitLogged(wal, ticket);
     }
 
     public int countCategories() {
@@ -38,137 +514,1194 @@ public class Sports {
     }
 
     public List<String> getCategoriesForActivity(String activity) {
-        return activityToCategories.getOrDefault(activity, new TreeSet<>())
-                .stream().collect(Collectors.toList());
+        return new ArrayList<>(activityToCategories.getOrDefault(activity, Collections.emptySortedSet()));
     }
 
     // R2: Products
     public void addProduct(String name, String activityName, String categoryName) throws SportsException {
-        if (products.containsKey(name)) {
-            throw new SportsException("Duplicate product: " + name);
+        long start = startTimer();
+        WriteAheadLog wal;
+        long ticket = 0;
+        synchronized (catalogLock) {
+            // Checked under the lock, so a concurrent addCategory cannot unlink the category
+            // between the check and the log record, which would make the log fail to replay
+            if (products.containsKey(name)) {
+                throw new SportsException("Duplicate product: " + name);
+            }
+            if (!activities.contains(activityName)) {
+                throw new SportsException("Activity not defined: " + activityName);
+            }
+            Set<String> linked = categoryToActivities.get(categoryName);
+            if (linked == null || !linked.contains(activityName)) {
+                throw new SportsException("Invalid category or not linked to activity");
+            }
+            Product product = new Product(name, activityIds.id(activityName), categoryIds.id(categoryName));
+            // Logged before the product becomes visible, so its ratings always follow it in the log
+            wal = log;
+            if (wal != null) {
+                ticket = wal.enqueue(WriteAheadLog.addProduct(name, activityName, categoryName));
+            }
+            products.put(name, product);
+            categoryToProducts.computeIfAbsent(categoryName, k -> new ConcurrentSkipListMap<>()).put(name, product);
+            activityToProducts.computeIfAbsent(activityName, k -> new ConcurrentSkipListMap<>()).put(name, product);
+            activityCategoryToProducts.computeIfAbsent(activityName, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(categoryName, k -> new ConcurrentSkipListMap<>()).put(name, product);
         }
-        if (!activities.contains(activityName)) {
-            throw new SportsException("Activity not defined: " + activityName);
+        awaitLogged(wal, ticket);
+        record(MetricsSink.Operation.ADD_PRODUCT, start, 1);
+    }
+
+    /**
+     * Bulk variant of addProduct for cold starts. Rows must be sorted by product name;
+     * they are validated against the activity and category tables in a single sweep
+     * before anything is applied. Maps and indexes that are still empty are built in
+     * linear time from the sorted rows, the others receive the rows one by one.
+     */
+    public void addProducts(List<ProductRow> rows) throws SportsException {
+        long start = startTimer();
+        WriteAheadLog wal;
+        long ticket = 0;
+        synchronized (catalogLock) {
+            String previous = null;
+            for (ProductRow row : rows) {
+                if (previous != null && row.name.compareTo(previous) < 0) {
+                    throw new SportsException("Products not sorted by name: " + row.name);
+                }
+                if (row.name.equals(previous) || products.containsKey(row.name)) {
+                    throw new SportsException("Duplicate product: " + row.name);
+                }
+                if (!activities.contains(row.activity)) {
+                    throw new SportsException("Activity not defined: " + row.activity);
+                }
+                Set<String> linked = categoryToActivities.get(row.category);
+                if (linked == null || !linked.contains(row.activity)) {
+                    throw new SportsException("Invalid category or not linked to activity");
+                }
+                previous = row.name;
+            }
+            List<String> names = new ArrayList<>(rows.size());
+            List<Product> loaded = new ArrayList<>(rows.size());
+            Map<String, List<Product>> byCategory = new HashMap<>();
+            Map<String, List<Product>> byActivity = new HashMap<>();
+            Map<String, Map<String, List<Product>>> byActivityCategory = new HashMap<>();
+            for (ProductRow row : rows) {
+                Product product = new Product(row.name, activityIds.id(row.activity), categoryIds.id(row.category));
+                names.add(row.name);
+                loaded.add(product);
+                byCategory.computeIfAbsent(row.category, k -> new ArrayList<>()).add(product);
+                byActivity.computeIfAbsent(row.activity, k -> new ArrayList<>()).add(product);
+                byActivityCategory.computeIfAbsent(row.activity, k -> new HashMap<>())
+                        .computeIfAbsent(row.category, k -> new ArrayList<>()).add(product);
+            }
+            wal = log;
+            if (wal != null) {
+                ticket = wal.enqueue(WriteAheadLog.addProducts(rows));
+            }
+            products = merge(products, names, loaded);
+            mergeIndex(categoryToProducts, byCategory);
+            mergeIndex(activityToProducts, byActivity);
+            for (Map.Entry<String, Map<String, List<Product>>> entry : byActivityCategory.entrySet()) {
+                mergeIndex(activityCategoryToProducts.computeIfAbsent(entry.getKey(), k -> new ConcurrentHashMap<>()),
+                        entry.getValue());
+            }
         }
-        if (!categoryToActivities.containsKey(categoryName) ||
-                !categoryToActivities.get(categoryName).contains(activityName)) {
-            throw new SportsException("Invalid category or not linked to activity");
+        awaitLogged(wal, ticket);
+        record(MetricsSink.Operation.ADD_PRODUCTS, start, rows.size());
+    }
+
+    private static void mergeIndex(ConcurrentMap<String, ConcurrentNavigableMap<String, Product>> index,
+                                   Map<String, List<Product>> additions) {
+        for (Map.Entry<String, List<Product>> entry : additions.entrySet()) {
+            List<Product> sorted = entry.getValue();
+            List<String> names = new ArrayList<>(sorted.size());
+            for (Product product : sorted) {
+                names.add(product.name);
+            }
+            index.put(entry.getKey(), merge(index.get(entry.getKey()), names, sorted));
         }
-        products.put(name, new Product(name, activityName, categoryName));
+    }
+
+    // Returns target with the sorted entries added, or a map built from them in linear time if target is empty
+    private static <V> ConcurrentNavigableMap<String, V> merge(ConcurrentNavigableMap<String, V> target,
+                                                               List<String> sortedKeys, List<V> values) {
+        if (target == null || target.isEmpty()) {
+            return new ConcurrentSkipListMap<>(new SortedListMap<>(sortedKeys, values));
+        }
+        for (int i = 0; i < sortedKeys.size(); i++) {
+            target.put(sortedKeys.get(i), values.get(i));
+        }
+        return target;
     }
 
     public List<String> getProductsForCategory(String categoryName) {
-        return products.values().stream()
-                .filter(p -> p.category.equals(categoryName))
-                .map(p -> p.name)
-                .sorted()
-                .collect(Collectors.toList());
+        long start = startTimer();
+        List<String> result = names(categoryToProducts.get(categoryName));
+        record(MetricsSink.Operation.GET_PRODUCTS_FOR_CATEGORY, start, result.size());
+        return result;
     }
 
     public List<String> getProductsForActivity(String activityName) {
-        return products.values().stream()
-                .filter(p -> p.activity.equals(activityName))
-                .map(p -> p.name)
-                .sorted()
-                .collect(Collectors.toList());
+        long start = startTimer();
+        List<String> result = names(activityToProducts.get(activityName));
+        record(MetricsSink.Operation.GET_PRODUCTS_FOR_ACTIVITY, start, result.size());
+        return result;
+    }
+
+    /**
+     * Page of getProductsForCategory: at most {@code limit} names following
+     * {@code after}, or from the first name when {@code after} is null.
+     */
+    public List<String> getProductsForCategory(String categoryName, String after, int limit) {
+        long start = startTimer();
+        List<String> result = page(categoryToProducts.get(categoryName), after, limit);
+        record(MetricsSink.Operation.GET_PRODUCTS_FOR_CATEGORY, start, result.size());
+        return result;
+    }
+
+    /**
+     * Page of getProductsForActivity, see getProductsForCategory(String, String, int).
+     */
+    public List<String> getProductsForActivity(String activityName, String after, int limit) {
+        long start = startTimer();
+        List<String> result = page(activityToProducts.get(activityName), after, limit);
+        record(MetricsSink.Operation.GET_PRODUCTS_FOR_ACTIVITY, start, result.size());
+        return result;
+    }
+
+    private static List<String> names(ConcurrentNavigableMap<String, Product> index) {
+        return index == null ? new ArrayList<>() : new ArrayList<>(index.keySet());
+    }
+
+    private static List<String> page(ConcurrentNavigableMap<String, Product> index, String after, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit");
+        }
+        List<String> result = new ArrayList<>(Math.min(limit, 64));
+        if (index == null) {
+            return result;
+        }
+        Iterator<String> it = tail(index, after).iterator();
+        while (result.size() < limit && it.hasNext()) {
+            result.add(it.next());
+        }
+        return result;
+    }
+
+    private static Set<String> tail(ConcurrentNavigableMap<String, Product> index, String after) {
+        return after == null ? index.keySet() : index.tailMap(after, false).keySet();
     }
 
     public List<String> getProducts(String activityName, String... categoryNames) {
-        Set<String> categories = new HashSet<>(Arrays.asList(categoryNames));
-        return products.values().stream()
-                .filter(p -> p.activity.equals(activityName) && categories.contains(p.category))
-                .map(p -> p.name)
-                .sorted()
-                .collect(Collectors.toList());
+        return getProducts(activityName, null, Integer.MAX_VALUE, categoryNames);
+    }
+
+    /**
+     * Page of getProducts: at most {@code limit} names following {@code after},
+     * or from the first name when {@code after} is null.
+     */
+    public List<String> getProducts(String activityName, String after, int limit, String... categoryNames) {
+        long start = startTimer();
+        List<String> result = mergeProducts(activityName, after, limit, categoryNames);
+        record(MetricsSink.Operation.GET_PRODUCTS, start, result.size());
+        return result;
+    }
+
+    private List<String> mergeProducts(String activityName, String after, int limit, String... categoryNames) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit");
+        }
+        Map<String, ConcurrentNavigableMap<String, Product>> byCategory = activityCategoryToProducts.get(activityName);
+        if (byCategory == null) {
+            return new ArrayList<>();
+        }
+        // A product has exactly one category, so the per-category sets are disjoint
+        // and a k-way merge of the already sorted sets yields the sorted union.
+        List<ConcurrentNavigableMap<String, Product>> sources = new ArrayList<>();
+        for (String category : new HashSet<>(Arrays.asList(categoryNames))) {
+            ConcurrentNavigableMap<String, Product> index = byCategory.get(category);
+            if (index != null && !index.isEmpty()) {
+                sources.add(index);
+            }
+        }
+        if (sources.size() == 1) {
+            return after == null && limit == Integer.MAX_VALUE ? names(sources.get(0)) : page(sources.get(0), after, limit);
+        }
+        List<String> result = new ArrayList<>(limit == Integer.MAX_VALUE ? totalSize(sources) : Math.min(limit, 64));
+        PriorityQueue<MergeCursor> heap = new PriorityQueue<>(Math.max(1, sources.size()));
+        for (ConcurrentNavigableMap<String, Product> index : sources) {
+            Iterator<String> it = tail(index, after).iterator();
+            if (it.hasNext()) {
+                heap.add(new MergeCursor(it.next(), it));
+            }
+        }
+        while (result.size() < limit && !heap.isEmpty()) {
+            MergeCursor cursor = heap.poll();
+            result.add(cursor.head);
+            if (cursor.rest.hasNext()) {
+                cursor.head = cursor.rest.next();
+                heap.add(cursor);
+            }
+        }
+        return result;
+    }
+
+    private static int totalSize(List<ConcurrentNavigableMap<String, Product>> sources) {
+        int size = 0;
+        for (ConcurrentNavigableMap<String, Product> index : sources) {
+            size += index.size();
+        }
+        return size;
     }
 
     // R3: Ratings
     public void addRating(String productName, String userName, int numStars, String comment) throws SportsException {
+        long start = startTimer();
+        ProductRatings ratings = appendRating(productName, userName, numStars, comment);
+        reindex(ratings);
+        record(MetricsSink.Operation.ADD_RATING, start, ratings.count());
+    }
+
+    /**
+     * High-throughput variant of addRating for bulk producers: the rating is appended
+     * and all counters are updated without taking any lock, while moving the product
+     * to its new place in the products-per-stars index is deferred to the next
+     * getProductsPerStars or topRatedProducts.
+     */
+    public void ingestRating(String productName, String userName, int numStars, String comment) throws SportsException {
+        long start = startTimer();
+        ProductRatings ratings = appendRating(productName, userName, numStars, comment);
+        if (ratings.markUnindexed()) {
+            unindexedRatings.add(ratings);
+        }
+        record(MetricsSink.Operation.INGEST_RATING, start, ratings.count());
+    }
+
+    /**
+     * Bulk variant of addRating for imports. All rows are validated in one pass and
+     * grouped by product; each group is appended with a single reservation and its
+     * aggregates are applied once. Invalid rows are skipped rather than aborting the
+     * batch.
+     *
+     * @return the failure of each rejected row, keyed by its position in {@code rows}
+     */
+    public SortedMap<Integer, SportsException> addRatings(Collection<RatingRow> rows) {
+        long start = startTimer();
+        SortedMap<Integer, SportsException> failures = new TreeMap<>();
+        Map<String, RatingGroup> groups = new LinkedHashMap<>();
+        int index = 0;
+        for (RatingRow row : rows) {
+            if (row.stars < 0 || row.stars > 5) {
+                failures.put(index, new SportsException("Stars must be between 0 and 5"));
+            } else if (!productRatings.containsKey(row.productName) && !products.containsKey(row.productName)) {
+                failures.put(index, new SportsException("Product does not exist"));
+            } else {
+                groups.computeIfAbsent(row.productName, k -> new RatingGroup())
+                        .add(index, userIds.intern(row.userName), row.stars, row.comment);
+            }
+            index++;
+        }
+        long batchCount = 0;
+        long batchSum = 0;
+        for (Map.Entry<String, RatingGroup> entry : groups.entrySet()) {
+            RatingGroup group = entry.getValue();
+            ProductRatings target = productRatings.get(entry.getKey());
+            if (target == null) {
+                Product product = products.get(entry.getKey());
+                target = productRatings.computeIfAbsent(entry.getKey(), k -> new ProductRatings(product, comments));
+            }
+            Product product = target.product;
+            try {
+                target.addAll(group);
+            } catch (SportsException ex) {
+                for (int i = 0; i < group.size; i++) {
+                    failures.put(group.rows[i], ex);
+                }
+                continue;
+            }
+            activityStats[product.activity].add(group.size, group.sum);
+            reindex(target);
+            batchCount += group.size;
+            batchSum += group.sum;
+        }
+        ratingCount.add(batchCount);
+        starSum.add(batchSum);
+        WriteAheadLog wal = log;
+        if (wal != null && batchCount > 0) {
+            List<RatingRow> accepted = new ArrayList<>((int) batchCount);
+            index = 0;
+            for (RatingRow row : rows) {
+                if (!failures.containsKey(index++)) {
+                    accepted.add(row);
+                }
+            }
+            awaitLogged(wal, wal.enqueue(WriteAheadLog.addRatings(accepted)));
+        }
+        record(MetricsSink.Operation.ADD_RATINGS, start, rows.size());
+        return failures;
+    }
+
+    private ProductRatings appendRating(String productName, String userName, int numStars, String comment) throws SportsException {
         if (numStars < 0 || numStars > 5) {
             throw new SportsException("Stars must be between 0 and 5");
         }
-        if (!products.containsKey(productName)) {
-            throw new SportsException("Product does not exist");
+        // Rated products are found in the hash map, so only a first rating searches the catalog
+        ProductRatings ratings = productRatings.get(productName);
+        if (ratings == null) {
+            Product product = products.get(productName);
+            if (product == null) {
+                throw new SportsException("Product does not exist");
+            }
+            ratings = productRatings.computeIfAbsent(productName, k -> new ProductRatings(product, comments));
+        }
+        ratings.add(userIds.intern(userName), numStars, comment);
+        activityStats[ratings.product.activity].add(numStars);
+        ratingCount.increment();
+        starSum.add(numStars);
+        WriteAheadLog wal = log;
+        if (wal != null) {
+            awaitLogged(wal, wal.enqueue(WriteAheadLog.addRating(productName, userName, numStars, comment)));
+        }
+        return ratings;
+    }
+
+    // Moves the product to the key of its current average in the global, activity and category
+    // indexes; the product's monitor orders concurrent moves
+    private void reindex(ProductRatings ratings) {
+        synchronized (ratings) {
+            double current = ratings.average();
+            RatedProduct indexed = ratings.indexed;
+            if (indexed != null && current == indexed.average) {
+                return;
+            }
+            Product product = ratings.product;
+            RatedProduct key = new RatedProduct(product.name, current);
+            // Read after the product, whose activity and category were defined before it became visible
+            StarIndex byActivity = activityProductsPerStars[product.activity];
+            StarIndex byCategory = categoryProductsPerStars[product.category];
+            if (indexed != null) {
+                productsPerStars.remove(indexed);
+                byActivity.remove(indexed);
+                byCategory.remove(indexed);
+            }
+            productsPerStars.add(key);
+            byActivity.add(key);
+            byCategory.add(key);
+            ratings.indexed = key;
+        }
+    }
+
+    private void reindexPending() {
+        ProductRatings ratings;
+        while ((ratings = unindexedRatings.poll()) != null) {
+            ratings.clearUnindexed();
+            reindex(ratings);
         }
-        productRatings.putIfAbsent(productName, new ArrayList<>());
-        productRatings.get(productName).add(new Rating(userName, numStars, comment));
     }
 
     public List<String> getRatingsForProduct(String productName) {
-        return productRatings.getOrDefault(productName, new ArrayList<>())
-                .stream()
-                .sorted((a, b) -> Integer.compare(b.stars, a.stars))
-                .map(r -> r.stars + " : " + r.comment)
-                .collect(Collectors.toList());
+        long start = startTimer();
+        List<String> result = ratingLines(productName);
+        record(MetricsSink.Operation.GET_RATINGS_FOR_PRODUCT, start, result.size());
+        return result;
+    }
+
+    private List<String> ratingLines(String productName) {
+        ProductRatings ratings = productRatings.get(productName);
+        if (ratings == null) {
+            return new ArrayList<>();
+        }
+        // Buckets are kept per star value in insertion order, so walking them from
+        // five stars down gives the stable descending order without sorting
+        List<String> result = new ArrayList<>((int) ratings.count());
+        for (int stars = 5; stars >= 0; stars--) {
+            RatingColumns bucket = ratings.column(stars);
+            int size = bucket.size();
+            for (int i = 0; i < size; i++) {
+                if (bucket.isPublished(i)) {
+                    result.add(bucket.line(i));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * One page of getRatingsForProduct, skipping the first {@code offset} ratings.
+     */
+    public List<String> getRatingsForProduct(String productName, int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("Negative offset or limit");
+        }
+        long start = startTimer();
+        ProductRatings ratings = productRatings.get(productName);
+        List<String> result;
+        if (ratings == null) {
+            result = new ArrayList<>();
+        } else {
+            RatingCursor cursor = new RatingCursor(ratings, 0);
+            cursor.skip(offset);
+            result = cursor.next(limit);
+        }
+        record(MetricsSink.Operation.GET_RATINGS_FOR_PRODUCT, start, result.size());
+        return result;
+    }
+
+    /**
+     * Cursor-based page of getRatingsForProduct. Start with cursor 0 and pass the
+     * returned next cursor to get the following page; unlike offsets, cursors do not
+     * shift when ratings with more stars arrive between two calls.
+     */
+    public RatingPage getRatingsPage(String productName, long cursor, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("Negative limit");
+        }
+        // Both halves of a cursor are non-negative and the star half stops at the end cursor
+        if (cursor < 0 || cursor > RatingCursor.END || (int) cursor < 0) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+        long start = startTimer();
+        ProductRatings ratings = productRatings.get(productName);
+        RatingPage page;
+        if (ratings == null) {
+            page = new RatingPage(new ArrayList<>(), RatingCursor.END, false);
+        } else {
+            RatingCursor position = new RatingCursor(ratings, cursor);
+            List<String> lines = position.next(limit);
+            page = new RatingPage(lines, position.position(), position.hasNext());
+        }
+        record(MetricsSink.Operation.GET_RATINGS_FOR_PRODUCT, start, page.getRatings().size());
+        return page;
+    }
+
+    /**
+     * Lazy variant of getRatingsForProduct: ratings are formatted as they are consumed.
+     */
+    public Iterator<String> ratingsIterator(String productName) {
+        long start = startTimer();
+        ProductRatings ratings = productRatings.get(productName);
+        Iterator<String> result = ratings == null ? Collections.emptyIterator() : new RatingCursor(ratings, 0);
+        record(MetricsSink.Operation.GET_RATINGS_FOR_PRODUCT, start, ratings == null ? 0 : ratings.count());
+        return result;
+    }
+
+    public Stream<String> streamRatingsForProduct(String productName) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(ratingsIterator(productName),
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
     }
 
     // R4: Evaluations
     public double getStarsOfProduct(String productName) {
-        List<Rating> ratings = productRatings.get(productName);
-        if (ratings == null || ratings.isEmpty()) return 0;
-        return ratings.stream().mapToInt(r -> r.stars).average().orElse(0);
+        long start = startTimer();
+        ProductRatings ratings = productRatings.get(productName);
+        double average = ratings == null ? 0 : ratings.average();
+        record(MetricsSink.Operation.GET_STARS_OF_PRODUCT, start, ratings == null ? 0 : ratings.count());
+        return average;
     }
 
     public double averageStars() {
-        return productRatings.values().stream()
-                .flatMap(List::stream)
-                .mapToInt(r -> r.stars)
-                .average().orElse(0);
+        long start = startTimer();
+        long count = ratingCount.sum();
+        double average = count == 0 ? 0 : (double) starSum.sum() / count;
+        record(MetricsSink.Operation.AVERAGE_STARS, start, 1);
+        return average;
     }
 
     // R5: Statistics
+    /**
+     * Average stars of every rated activity. The map is unmodifiable and shared by all
+     * callers until another rating is counted, so repeated calls allocate nothing.
+     */
     public SortedMap<String, Double> starsPerActivity() {
-        SortedMap<String, List<Integer>> actToStars = new TreeMap<>();
-        for (Map.Entry<String, List<Rating>> entry : productRatings.entrySet()) {
-            String activity = products.get(entry.getKey()).activity;
-            List<Integer> stars = actToStars.computeIfAbsent(activity, k -> new ArrayList<>());
-            stars.addAll(entry.getValue().stream().map(r -> r.stars).collect(Collectors.toList()));
+        long start = startTimer();
+        ActivityAverages cached = activityAverages;
+        // Read before the counters, as in view(): a rating counted later forces a rebuild
+        long version = ratingCount.sum();
+        if (cached.version != version) {
+            SortedMap<String, Double> result = new TreeMap<>();
+            ActivityStats[] stats = activityStats;
+            for (int id = 0; id < stats.length; id++) {
+                long count = stats[id].count.sum();
+                if (count > 0) {
+                    result.put(activityIds.name(id), (double) stats[id].sum.sum() / count);
+                }
+            }
+            cached = new ActivityAverages(version, Collections.unmodifiableSortedMap(result));
+            activityAverages = cached;
         }
+        record(MetricsSink.Operation.STARS_PER_ACTIVITY, start, cached.averages.size());
+        return cached.averages;
+    }
+
+    public SortedMap<Double, List<String>> getProductsPerStars() {
+        long start = startTimer();
+        reindexPending();
+        SortedMap<Double, List<String>> result = productsPerStars.snapshot();
+        record(MetricsSink.Operation.GET_PRODUCTS_PER_STARS, start, result.size());
+        return result;
+    }
+
+    /**
+     * Parallel variant of starsPerActivity: recomputes the averages from the rated
+     * products, split into ranges that are summed per activity on {@code pool} and
+     * then merged. Gives the same result as starsPerActivity when no rating is being
+     * added meanwhile, also as an unmodifiable map.
+     */
+    public SortedMap<String, Double> starsPerActivity(ForkJoinPool pool) {
+        long start = startTimer();
+        ProductRatings[] rated = productRatings.values().toArray(new ProductRatings[0]);
+        // Read after the products: each of them refers to an activity defined before it
+        int activityCount = activityStats.length;
+        long[] totals = pool.invoke(new ActivityTotalsTask(rated, 0, rated.length, activityCount));
         SortedMap<String, Double> result = new TreeMap<>();
-        for (Map.Entry<String, List<Integer>> entry : actToStars.entrySet()) {
-            result.put(entry.getKey(), entry.getValue().stream().mapToInt(i -> i).average().orElse(0));
+        for (int id = 0; id < activityCount; id++) {
+            if (totals[id] > 0) {
+                result.put(activityIds.name(id), (double) totals[activityCount + id] / totals[id]);
+            }
         }
-        return result;
+        record(MetricsSink.Operation.STARS_PER_ACTIVITY, start, result.size());
+        return Collections.unmodifiableSortedMap(result);
     }
 
-    public SortedMap<Double, List<String>> getProductsPerStars() {
-        Map<String, Double> avgStars = new HashMap<>();
-        for (String prod : productRatings.keySet()) {
-            avgStars.put(prod, getStarsOfProduct(prod));
+    /**
+     * Parallel variant of getProductsPerStars: buckets the rated products by average
+     * in ranges on {@code pool}, merges the buckets and sorts them in parallel. Gives
+     * the same result as getProductsPerStars when no rating is being added meanwhile.
+     */
+    public SortedMap<Double, List<String>> getProductsPerStars(ForkJoinPool pool) {
+        long start = startTimer();
+        ProductRatings[] rated = productRatings.values().toArray(new ProductRatings[0]);
+        Map<Double, List<String>> buckets = pool.invoke(new StarBucketsTask(rated, 0, rated.length));
+        List<ForkJoinTask<?>> sorts = new ArrayList<>(buckets.size());
+        for (List<String> names : buckets.values()) {
+            sorts.add(ForkJoinTask.adapt(() -> Collections.sort(names)));
         }
-        SortedMap<Double, List<String>> res = new TreeMap<>(Comparator.reverseOrder());
-        for (Map.Entry<String, Double> entry : avgStars.entrySet()) {
-            res.putIfAbsent(entry.getValue(), new ArrayList<>());
-            res.get(entry.getValue()).add(entry.getKey());
+        pool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(sorts)));
+        SortedMap<Double, List<String>> result = new TreeMap<>(Comparator.reverseOrder());
+        result.putAll(buckets);
+        record(MetricsSink.Operation.GET_PRODUCTS_PER_STARS, start, result.size());
+        return result;
+    }
+
+    /**
+     * The k rated products with the best average stars, ties broken by name.
+     * Read from the head of the products-per-stars index, so the cost depends on k
+     * and not on the size of the catalog.
+     */
+    public List<String> topRatedProducts(int k) {
+        reindexPending();
+        return productsPerStars.top(k);
+    }
+
+    /**
+     * The k rated products of an activity with the best average stars, ties broken
+     * by name. Read from the head of the activity's own products-per-stars index,
+     * so the cost depends on k and not on the size of the activity.
+     */
+    public List<String> topRatedProductsForActivity(String activityName, int k) {
+        return topRated(activityProductsPerStars, activityIds.id(activityName), k);
+    }
+
+    /**
+     * Per-category variant of topRatedProductsForActivity.
+     */
+    public List<String> topRatedProductsForCategory(String categoryName, int k) {
+        return topRated(categoryProductsPerStars, categoryIds.id(categoryName), k);
+    }
+
+    private List<String> topRated(StarIndex[] indexes, int id, int k) {
+        reindexPending();
+        // An unknown name, or one interned by a catalog writer that has not grown the indexes yet
+        StarIndex index = id >= 0 && id < indexes.length ? indexes[id] : StarIndex.NONE;
+        return index.top(k);
+    }
+
+    /**
+     * Immutable statistics over the rated products. All figures of one view are
+     * derived from the same per-product totals, each read atomically, so they agree
+     * with each other even while ratings are being added; writers are never blocked.
+     * A view is rebuilt only when ratings were counted since the last one.
+     */
+    public StatsView view() {
+        StatsView current = statsView;
+        // Read before the scan: a rating counted later forces the next caller to rebuild
+        long version = ratingCount.sum();
+        if (current.getVersion() == version) {
+            return current;
         }
-        for (List<String> list : res.values()) {
-            Collections.sort(list);
+        List<ProductRatings> rated = new ArrayList<>(productRatings.values());
+        rated.sort(Comparator.comparing(ratings -> ratings.product.name));
+        String[] names = new String[rated.size()];
+        String[] activityNames = new String[rated.size()];
+        long[] totals = new long[rated.size()];
+        for (int i = 0; i < names.length; i++) {
+            ProductRatings ratings = rated.get(i);
+            names[i] = ratings.product.name;
+            activityNames[i] = activityIds.name(ratings.product.activity);
+            totals[i] = ratings.totals;
         }
-        return res;
+        StatsView built = new StatsView(version, names, activityNames, totals);
+        statsView = built;
+        return built;
     }
 
     // Inner helper classes
     private static class Product {
-        String name;
-        String activity;
-        String category;
+        final String name;
+        // Ids in the activity and category symbol tables
+        final int activity;
+        final int category;
 
-        Product(String name, String activity, String category) {
+        Product(String name, int activity, int category) {
             this.name = name;
             this.activity = activity;
             this.category = category;
         }
     }
 
-    private static class Rating {
-        String user;
-        int stars;
-        String comment;
+    /**
+     * Ratings of one product, stored column-wise in one bucket per star value, plus
+     * their running aggregates, all updated lock-free. The size of a bucket doubles as
+     * the star histogram.
+     * Count and sum are packed into one long so a reader never sees them torn apart.
+     * The product's monitor only guards its position in the products-per-stars index.
+     */
+    private static class ProductRatings {
+        static final int COUNT_SHIFT = 35;
+        static final long SUM_MASK = (1L << COUNT_SHIFT) - 1;
+        // Well below the 29 bits available for the count, leaving room for racing writers
+        static final long MAX_COUNT = 1L << 28;
+        static final AtomicLongFieldUpdater<ProductRatings> TOTALS =
+                AtomicLongFieldUpdater.newUpdater(ProductRatings.class, "totals");
+        static final AtomicIntegerFieldUpdater<ProductRatings> UNINDEXED =
+                AtomicIntegerFieldUpdater.newUpdater(ProductRatings.class, "unindexed");
+
+        static final VarHandle COLUMN = MethodHandles.arrayElementVarHandle(RatingColumns[].class);
+
+        final Product product;
+        final MappedCommentStore comments;
+        // Columns per star value, each created by the first rating with those stars
+        private final RatingColumns[] byStars = new RatingColumns[6];
+        volatile long totals;
+        volatile int unindexed;
+        // Key of the product in the star index, or null; guarded by the monitor of this object
+        RatedProduct indexed;
+
+        ProductRatings(Product product, MappedCommentStore comments) {
+            this.product = product;
+            this.comments = comments;
+        }
+
+        // Ratings with the given stars; RatingColumns.EMPTY while there is none
+        RatingColumns column(int stars) {
+            RatingColumns column = (RatingColumns) COLUMN.getAcquire(byStars, stars);
+            return column == null ? RatingColumns.EMPTY : column;
+        }
+
+        private RatingColumns columnForAdd(int stars) {
+            RatingColumns column = (RatingColumns) COLUMN.getAcquire(byStars, stars);
+            if (column == null) {
+                RatingColumns created = new RatingColumns(stars, comments);
+                column = (RatingColumns) COLUMN.compareAndExchange(byStars, stars, null, created);
+                if (column == null) {
+                    column = created;
+                }
+            }
+            return column;
+        }
+
+        void add(int user, int stars, String comment) throws SportsException {
+            if (count() >= MAX_COUNT) {
+                throw new SportsException("Too many ratings for product");
+            }
+            columnForAdd(stars).add(user, comment);
+            TOTALS.getAndAdd(this, (1L << COUNT_SHIFT) + stars);
+        }
+
+        // Appends a group of ratings and applies their aggregates once
+        void addAll(RatingGroup group) throws SportsException {
+            if (count() + group.size > MAX_COUNT) {
+                throw new SportsException("Too many ratings for product");
+            }
+            for (int stars = 0; stars < byStars.length; stars++) {
+                if (group.counts[stars] > 0) {
+                    columnForAdd(stars).addAll(group.users[stars], group.comments[stars], group.counts[stars]);
+                }
+            }
+            TOTALS.getAndAdd(this, ((long) group.size << COUNT_SHIFT) + group.sum);
+        }
+
+
+        boolean markUnindexed() {
+            return unindexed == 0 && UNINDEXED.compareAndSet(this, 0, 1);
+        }
+
+        void clearUnindexed() {
+            unindexed = 0;
+        }
+
+        long count() {
+            return totals >>> COUNT_SHIFT;
+        }
+
+        double average() {
+            long t = totals;
+            long count = t >>> COUNT_SHIFT;
+            return count == 0 ? 0 : (double) (t & SUM_MASK) / count;
+        }
+    }
+
+    private static class ActivityStats {
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+
+        void add(int stars) {
+            count.increment();
+            sum.add(stars);
+        }
+
+        void add(long ratings, long stars) {
+            count.add(ratings);
+            sum.add(stars);
+        }
+    }
+
+    // starsPerActivity result together with the rating count it was computed at
+    private static class ActivityAverages {
+        final long version;
+        final SortedMap<String, Double> averages;
+
+        ActivityAverages(long version, SortedMap<String, Double> averages) {
+            this.version = version;
+            this.averages = averages;
+        }
+    }
+
+    /**
+     * Rated products ordered by average stars, best first, and by name within an
+     * average. Moving a product is one remove and one add of its key, so neither
+     * writers nor readers lock and nothing is allocated besides the new key.
+     */
+    private static class StarIndex {
+        // Stands for the index of an unknown activity or category; never written
+        static final StarIndex NONE = new StarIndex();
+
+        // RatedProduct orders worse products first, so the reverse order lists the best first
+        final ConcurrentSkipListSet<RatedProduct> products = new ConcurrentSkipListSet<>(Comparator.reverseOrder());
+
+        void add(RatedProduct key) {
+            products.add(key);
+        }
+
+        void remove(RatedProduct key) {
+            products.remove(key);
+        }
+
+        // Equal averages are neighbours in the set, so each run of them becomes one bucket
+        SortedMap<Double, List<String>> snapshot() {
+            SortedMap<Double, List<String>> res = new TreeMap<>(Comparator.reverseOrder());
+            List<String> names = null;
+            double average = 0;
+            for (RatedProduct product : products) {
+                if (names == null || product.average != average) {
+                    average = product.average;
+                    names = new ArrayList<>();
+                    res.put(average, names);
+                }
+                names.add(product.name);
+            }
+            return res;
+        }
+
+        List<String> top(int k) {
+            if (k < 0) {
+                throw new IllegalArgumentException("Negative k");
+            }
+            List<String> result = new ArrayList<>(Math.min(k, 64));
+            for (RatedProduct product : products) {
+                if (result.size() == k) {
+                    break;
+                }
+                result.add(product.name);
+            }
+            return result;
+        }
+    }
+
+    // Orders worse products first: lower average, then later name
+    private static class RatedProduct implements Comparable<RatedProduct> {
+        final String name;
+        final double average;
+        // First chars of the name, so most ties on the average are settled without reading the name
+        final long namePrefix;
+
+        RatedProduct(String name, double average) {
+            this.name = name;
+            this.average = average;
+            this.namePrefix = prefix(name);
+        }
+
+        @Override
+        public int compareTo(RatedProduct other) {
+            int byAverage = Double.compare(average, other.average);
+            if (byAverage != 0) {
+                return byAverage;
+            }
+            int byPrefix = Long.compareUnsigned(other.namePrefix, namePrefix);
+            return byPrefix != 0 ? byPrefix : other.name.compareTo(name);
+        }
+
+        // Up to 8 chars, one byte each, ordered as String.compareTo orders them; a char
+        // above 254 becomes 255 and ends the prefix, so differing prefixes never mislead
+        static long prefix(String name) {
+            long prefix = 0;
+            int length = Math.min(Long.BYTES, name.length());
+            for (int i = 0; i < length; i++) {
+                int c = name.charAt(i);
+                int shift = Long.SIZE - Byte.SIZE * (i + 1);
+                if (c >= 0xFF) {
+                    return prefix | 0xFFL << shift;
+                }
+                prefix |= (long) c << shift;
+            }
+            return prefix;
+        }
+    }
+
+    // Rating count per activity id followed by star sum per activity id over a range of products
+    @SuppressWarnings("serial")
+    private static class ActivityTotalsTask extends RecursiveTask<long[]> {
+        static final int THRESHOLD = 1 << 12;
 
-        Rating(String user, int stars, String comment) {
-            this.user = user;
+        final ProductRatings[] rated;
+        final int from;
+        final int to;
+        final int activityCount;
+
+        ActivityTotalsTask(ProductRatings[] rated, int from, int to, int activityCount) {
+            this.rated = rated;
+            this.from = from;
+            this.to = to;
+            this.activityCount = activityCount;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from <= THRESHOLD) {
+                long[] totals = new long[2 * activityCount];
+                for (int i = from; i < to; i++) {
+                    long t = rated[i].totals;
+                    int activity = rated[i].product.activity;
+                    totals[activity] += t >>> ProductRatings.COUNT_SHIFT;
+                    totals[activityCount + activity] += t & ProductRatings.SUM_MASK;
+                }
+                return totals;
+            }
+            int middle = (from + to) >>> 1;
+            ActivityTotalsTask left = new ActivityTotalsTask(rated, from, middle, activityCount);
+            left.fork();
+            long[] totals = new ActivityTotalsTask(rated, middle, to, activityCount).compute();
+            long[] other = left.join();
+            for (int i = 0; i < totals.length; i++) {
+                totals[i] += other[i];
+            }
+            return totals;
+        }
+    }
+
+    // Names of a range of rated products keyed by their average, unsorted
+    @SuppressWarnings("serial")
+    private static class StarBucketsTask extends RecursiveTask<Map<Double, List<String>>> {
+        static final int THRESHOLD = 1 << 12;
+
+        final ProductRatings[] rated;
+        final int from;
+        final int to;
+
+        StarBucketsTask(ProductRatings[] rated, int from, int to) {
+            this.rated = rated;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Map<Double, List<String>> compute() {
+            if (to - from <= THRESHOLD) {
+                Map<Double, List<String>> buckets = new HashMap<>();
+                for (int i = from; i < to; i++) {
+                    if (rated[i].count() > 0) {
+                        buckets.computeIfAbsent(rated[i].average(), k -> new ArrayList<>()).add(rated[i].product.name);
+                    }
+                }
+                return buckets;
+            }
+            int middle = (from + to) >>> 1;
+            StarBucketsTask left = new StarBucketsTask(rated, from, middle);
+            left.fork();
+            Map<Double, List<String>> buckets = new StarBucketsTask(rated, middle, to).compute();
+            for (Map.Entry<Double, List<String>> entry : left.join().entrySet()) {
+                List<String> names = buckets.get(entry.getKey());
+                if (names == null) {
+                    buckets.put(entry.getKey(), entry.getValue());
+                } else {
+                    names.addAll(entry.getValue());
+                }
+            }
+            return buckets;
+        }
+    }
+
+    private static class MergeCursor implements Comparable<MergeCursor> {
+        String head;
+        Iterator<String> rest;
+
+        MergeCursor(String head, Iterator<String> rest) {
+            this.head = head;
+            this.rest = rest;
+        }
+
+        @Override
+        public int compareTo(MergeCursor other) {
+            return head.compareTo(other.head);
+        }
+    }
+
+    /**
+     * One row of a batch passed to addRatings.
+     */
+    public static class RatingRow {
+        final String productName;
+        final String userName;
+        final int stars;
+        final String comment;
+
+        public RatingRow(String productName, String userName, int stars, String comment) {
+            this.productName = productName;
+            this.userName = userName;
             this.stars = stars;
             this.comment = comment;
         }
     }
+
+    /**
+     * One row of a batch passed to addCategories.
+     */
+    public static class CategoryRow {
+        final String name;
+        final List<String> activities;
+
+        public CategoryRow(String name, String... activities) {
+            this.name = name;
+            this.activities = Arrays.asList(activities);
+        }
+    }
+
+    /**
+     * One row of a batch passed to addProducts.
+     */
+    public static class ProductRow {
+        final String name;
+        final String activity;
+        final String category;
+
+        public ProductRow(String name, String activity, String category) {
+            this.name = name;
+            this.activity = activity;
+            this.category = category;
+        }
+    }
+
+    /**
+     * Result of getRatingsPage.
+     */
+    public static class RatingPage {
+        private final List<String> ratings;
+        private final long nextCursor;
+        private final boolean hasMore;
+
+        RatingPage(List<String> ratings, long nextCursor, boolean hasMore) {
+            this.ratings = ratings;
+            this.nextCursor = nextCursor;
+            this.hasMore = hasMore;
+        }
+
+        public List<String> getRatings() {
+            return ratings;
+        }
+
+        public long getNextCursor() {
+            return nextCursor;
+        }
+
+        public boolean hasMore() {
+            return hasMore;
+        }
+    }
+
+    /**
+     * Point-in-time statistics returned by Sports.view(). Answers the R4 and R5
+     * queries from arrays captured once, in product name order.
+     */
+    public static class StatsView {
+        private final long version;
+        private final String[] names;
+        private final long[] totals;
+        private final double averageStars;
+        private final SortedMap<String, Double> starsPerActivity;
+        private final SortedMap<Double, List<String>> productsPerStars;
+
+        StatsView(long version, String[] names, String[] activityNames, long[] totals) {
+            this.version = version;
+            this.names = names;
+            this.totals = totals;
+            long count = 0;
+            long sum = 0;
+            Map<String, long[]> perActivity = new HashMap<>();
+            SortedMap<Double, List<String>> perStars = new TreeMap<>(Comparator.reverseOrder());
+            for (int i = 0; i < names.length; i++) {
+                long n = totals[i] >>> ProductRatings.COUNT_SHIFT;
+                if (n == 0) {
+                    continue;
+                }
+                long stars = totals[i] & ProductRatings.SUM_MASK;
+                count += n;
+                sum += stars;
+                long[] activity = perActivity.computeIfAbsent(activityNames[i], k -> new long[2]);
+                activity[0] += n;
+                activity[1] += stars;
+                perStars.computeIfAbsent((double) stars / n, k -> new ArrayList<>()).add(names[i]);
+            }
+            this.averageStars = count == 0 ? 0 : (double) sum / count;
+            SortedMap<String, Double> averages = new TreeMap<>();
+            for (Map.Entry<String, long[]> entry : perActivity.entrySet()) {
+                averages.put(entry.getKey(), (double) entry.getValue()[1] / entry.getValue()[0]);
+            }
+            this.starsPerActivity = Collections.unmodifiableSortedMap(averages);
+            for (Map.Entry<Double, List<String>> entry : perStars.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            this.productsPerStars = Collections.unmodifiableSortedMap(perStars);
+        }
+
+        // Rating count read just before the totals were captured: every rating counted by
+        // then is in the figures, and some counted while they were read may be as well
+        public long getVersion() {
+            return version;
+        }
+
+        public double getStarsOfProduct(String productName) {
+            int i = Arrays.binarySearch(names, productName);
+            if (i < 0) {
+                return 0;
+            }
+            long n = totals[i] >>> ProductRatings.COUNT_SHIFT;
+            return n == 0 ? 0 : (double) (totals[i] & ProductRatings.SUM_MASK) / n;
+        }
+
+        public double averageStars() {
+            return averageStars;
+        }
+
+        public SortedMap<String, Double> starsPerActivity() {
+            return starsPerActivity;
+        }
+
+        public SortedMap<Double, List<String>> getProductsPerStars() {
+            return productsPerStars;
+        }
+    }
+
+    /**
+     * Walks the star buckets of one product from five stars down. Its position is
+     * (5 - stars) in the high half and the index within the bucket in the low half,
+     * so position 0 is the first rating and positions grow in listing order.
+     */
+    private static class RatingCursor implements Iterator<String> {
+        static final long END = 6L << 32;
+
+        final ProductRatings ratings;
+        int stars;
+        int index;
+
+        RatingCursor(ProductRatings ratings, long position) {
+            this.ratings = ratings;
+            long bucket = position >>> 32;
+            this.stars = bucket > 5 ? -1 : 5 - (int) bucket;
+            this.index = (int) position;
+        }
+
+        long position() {
+            return stars < 0 ? END : ((long) (5 - stars) << 32) | index;
+        }
+
+        // Moves to the next published rating without consuming it; false at the end
+        private boolean seek() {
+            while (stars >= 0) {
+                RatingColumns bucket = ratings.column(stars);
+                int size = bucket.size();
+                while (index < size) {
+                    if (bucket.isPublished(index)) {
+                        return true;
+                    }
+                    index++;
+                }
+                stars--;
+                index = 0;
+            }
+            return false;
+        }
+
+        // Skips count published ratings, as listing them would, so offsets match the listing
+        void skip(int count) {
+            while (count > 0 && seek()) {
+                index++;
+                count--;
+            }
+        }
+
+        List<String> next(int limit) {
+            List<String> page = new ArrayList<>(Math.min(limit, 64));
+            while (page.size() < limit && seek()) {
+                page.add(next());
+            }
+            return page;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return seek();
+        }
+
+        @Override
+        public String next() {
+            if (!seek()) {
+                throw new NoSuchElementException();
+            }
+            return ratings.column(stars).line(index++);
+        }
+    }
+
+    // Ratings of one product appended together, split into columns by star value
+    private static class RatingGroup {
+        int size;
+        int[] rows = new int[4];
+        final int[] counts = new int[6];
+        final int[][] users = new int[6][4];
+        final String[][] comments = new String[6][4];
+        long sum;
+
+        void add(int row, int user, int stars, String comment) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+            }
+            rows[size++] = row;
+            int n = counts[stars]++;
+            if (n == users[stars].length) {
+                users[stars] = Arrays.copyOf(users[stars], n * 2);
+                comments[stars] = Arrays.copyOf(comments[stars], n * 2);
+            }
+            users[stars][n] = user;
+            comments[stars][n] = comment;
+            sum += stars;
+        }
+    }
 }
@@ -0,0 +1,59 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionary encoding of repeated strings into int ids, assigned from 0 in interning
+ * order. Lookups and interning are lock-free: a new symbol is stored at a freshly
+ * reserved id, then the id is offered with putIfAbsent. When threads race to intern
+ * the same symbol, the ids of the losers stay unused, so ids are dense only while
+ * symbols are interned by one thread at a time. A null string is encoded as NO_SYMBOL.
+ */
+class SymbolTable {
+    static final int NO_SYMBOL = -1;
+    // Fills ids that no symbol owned when a snapshot was written; never entered in ids
+    private static final String UNUSED = "";
+
+    private final ConcurrentMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ChunkedAppendBuffer<String> names = new ChunkedAppendBuffer<>();
+
+    int intern(String name) {
+        if (name == null) {
+            return NO_SYMBOL;
+        }
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        // The name is published before its id, so name(id) never misses
+        int reserved = names.add(name);
+        id = ids.putIfAbsent(name, reserved);
+        return id == null ? reserved : id;
+    }
+
+    /**
+     * Stores {@code name} at the next id even when it is already interned, as a lost
+     * race in intern does, so that names read back in id order get their former ids.
+     * A null name stands for an id that was reserved but never published.
+     */
+    void append(String name) {
+        if (name == null) {
+            names.add(UNUSED);
+        } else {
+            ids.putIfAbsent(name, names.add(name));
+        }
+    }
+
+    // Id of an already interned name, or NO_SYMBOL
+    int id(String name) {
+        Integer id = name == null ? null : ids.get(name);
+        return id == null ? NO_SYMBOL : id;
+    }
+
+    String name(int id) {
+        return id == NO_SYMBOL ? null : names.get(id);
+    }
+
+    int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,253 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SplittableRandom;
+
+/**
+ * Seeded generator of synthetic catalogs and ratings for load tests. Categories
+ * link to one or more activities, popular activities collecting more of them;
+ * products spread over categories following a Zipf law and ratings pick their
+ * product following another one, so rating counts per product follow a power law.
+ * The same seed always yields the same stream, whether it is loaded straight into
+ * a Sports instance or written to a file in the write-ahead log format.
+ */
+public class WorkloadGenerator {
+    private static final int BATCH = 10_000;
+    private static final int MAX_LINKS = 4;
+    // Cumulative weights of 0..5 stars out of 100: ratings lean towards the top
+    private static final int[] STAR_WEIGHTS = {5, 12, 20, 35, 65, 100};
+
+    private final long seed;
+    private final int activities;
+    private final int categories;
+    private final int products;
+    private final long ratings;
+    private double productSkew = 1.0;
+    private double ratingSkew = 1.0;
+    private int users;
+
+    public WorkloadGenerator(long seed, int activities, int categories, int products, long ratings) {
+        if (activities <= 0 || categories <= 0 || products < 0 || ratings < 0 || (ratings > 0 && products == 0)) {
+            throw new IllegalArgumentException("Invalid workload size");
+        }
+        this.seed = seed;
+        this.activities = activities;
+        this.categories = categories;
+        this.products = products;
+        this.ratings = ratings;
+        this.users = Math.max(1, products);
+    }
+
+    // Zipf exponent of the number of products per category; 0 spreads them evenly
+    public WorkloadGenerator setProductSkew(double productSkew) {
+        this.productSkew = productSkew;
+        return this;
+    }
+
+    // Zipf exponent of the number of ratings per product; 0 spreads them evenly
+    public WorkloadGenerator setRatingSkew(double ratingSkew) {
+        this.ratingSkew = ratingSkew;
+        return this;
+    }
+
+    public WorkloadGenerator setUsers(int users) {
+        if (users <= 0) {
+            throw new IllegalArgumentException("Invalid number of users");
+        }
+        this.users = users;
+        return this;
+    }
+
+    // Names sort in the order of their index, so batches reach the bulk loaders already sorted
+    public String activityName(int index) {
+        return name("activity", index, activities);
+    }
+
+    public String categoryName(int index) {
+        return name("category", index, categories);
+    }
+
+    public String productName(int index) {
+        return name("product", index, products);
+    }
+
+    public void populate(Sports sports) throws SportsException {
+        generate(new Sink<SportsException>() {
+            @Override
+            public void activities(String[] names) throws SportsException {
+                sports.defineActivities(names);
+            }
+
+            @Override
+            public void categories(List<Sports.CategoryRow> rows) throws SportsException {
+                sports.addCategories(rows);
+            }
+
+            @Override
+            public void products(List<Sports.ProductRow> rows) throws SportsException {
+                sports.addProducts(rows);
+            }
+
+            @Override
+            public void ratings(List<Sports.RatingRow> rows) throws SportsException {
+                SortedMap<Integer, SportsException> failures = sports.addRatings(rows);
+                if (!failures.isEmpty()) {
+                    throw failures.get(failures.firstKey());
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the workload to {@code file} as write-ahead log records, so it can be
+     * loaded later with replay or used as the starting log of Sports.openLog.
+     */
+    public void write(Path file) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+            generate(new Sink<IOException>() {
+                @Override
+                public void activities(String[] names) throws IOException {
+                    out.write(WriteAheadLog.defineActivities(names));
+                }
+
+                @Override
+                public void categories(List<Sports.CategoryRow> rows) throws IOException {
+                    out.write(WriteAheadLog.addCategories(rows));
+                }
+
+                @Override
+                public void products(List<Sports.ProductRow> rows) throws IOException {
+                    out.write(WriteAheadLog.addProducts(rows));
+                }
+
+                @Override
+                public void ratings(List<Sports.RatingRow> rows) throws IOException {
+                    out.write(WriteAheadLog.addRatings(rows));
+                }
+            });
+        }
+    }
+
+    // Loads a file written by write into sports
+    public static void replay(Path file, Sports sports) throws IOException, SportsException {
+        WriteAheadLog.replay(file, sports);
+    }
+
+    private <X extends Exception> void generate(Sink<X> sink) throws X {
+        SplittableRandom random = new SplittableRandom(seed);
+        String[] activityNames = new String[activities];
+        for (int i = 0; i < activities; i++) {
+            activityNames[i] = activityName(i);
+        }
+        sink.activities(activityNames);
+
+        int[][] links = new int[categories][];
+        List<Sports.CategoryRow> categoryRows = new ArrayList<>(categories);
+        for (int i = 0; i < categories; i++) {
+            links[i] = pickLinks(random);
+            String[] linked = new String[links[i].length];
+            for (int j = 0; j < linked.length; j++) {
+                linked[j] = activityNames[links[i][j]];
+            }
+            categoryRows.add(new Sports.CategoryRow(categoryName(i), linked));
+        }
+        sink.categories(categoryRows);
+
+        List<Sports.ProductRow> productRows = new ArrayList<>(Math.min(products, BATCH));
+        for (int i = 0; i < products; i++) {
+            int category = zipf(random, categories, productSkew);
+            int[] linked = links[category];
+            productRows.add(new Sports.ProductRow(productName(i),
+                    activityNames[linked[random.nextInt(linked.length)]], categoryName(category)));
+            if (productRows.size() == BATCH) {
+                sink.products(productRows);
+                productRows.clear();
+            }
+        }
+        if (!productRows.isEmpty()) {
+            sink.products(productRows);
+        }
+
+        List<Sports.RatingRow> ratingRows = new ArrayList<>((int) Math.min(ratings, BATCH));
+        for (long i = 0; i < ratings; i++) {
+            ratingRows.add(new Sports.RatingRow(productName(zipf(random, products, ratingSkew)),
+                    name("user", zipf(random, users, 1.0), users), stars(random), "comment " + i));
+            if (ratingRows.size() == BATCH) {
+                sink.ratings(ratingRows);
+                ratingRows.clear();
+            }
+        }
+        if (!ratingRows.isEmpty()) {
+            sink.ratings(ratingRows);
+        }
+    }
+
+    // Distinct activities of one category, popular activities being picked more often
+    private int[] pickLinks(SplittableRandom random) {
+        int count = 1 + zipf(random, Math.min(MAX_LINKS, activities), 1.5);
+        int[] links = new int[count];
+        for (int found = 0; found < count; ) {
+            int activity = zipf(random, activities, 1.0);
+            boolean duplicate = false;
+            for (int j = 0; j < found; j++) {
+                duplicate |= links[j] == activity;
+            }
+            if (!duplicate) {
+                links[found++] = activity;
+            }
+        }
+        return links;
+    }
+
+    private static int stars(SplittableRandom random) {
+        int draw = random.nextInt(100);
+        int stars = 0;
+        while (draw >= STAR_WEIGHTS[stars]) {
+            stars++;
+        }
+        return stars;
+    }
+
+    /**
+     * Rank in [0, n) drawn with probability roughly proportional to 1 / (rank + 1)^s,
+     * by inverting the continuous power law; s = 0 gives a uniform draw.
+     */
+    static int zipf(SplittableRandom random, int n, double s) {
+        double u = random.nextDouble();
+        double rank;
+        if (Math.abs(s - 1) < 1e-9) {
+            rank = Math.pow(n + 1, u);
+        } else {
+            double e = 1 - s;
+            rank = Math.pow((Math.pow(n + 1, e) - 1) * u + 1, 1 / e);
+        }
+        return Math.max(0, Math.min(n - 1, (int) rank - 1));
+    }
+
+    // prefix followed by index zero-padded to the width of the largest index below count
+    private static String name(String prefix, int index, int count) {
+        String digits = Integer.toString(index);
+        int width = Integer.toString(Math.max(0, count - 1)).length();
+        StringBuilder name = new StringBuilder(prefix.length() + width).append(prefix);
+        for (int i = digits.length(); i < width; i++) {
+            name.append('0');
+        }
+        return name.append(digits).toString();
+    }
+
+    // Receives the generated batches in order; X is the failure type of the destination
+    private interface Sink<X extends Exception> {
+        void activities(String[] names) throws X;
+
+        void categories(List<Sports.CategoryRow> rows) throws X;
+
+        void products(List<Sports.ProductRow> rows) throws X;
+
+        void ratings(List<Sports.RatingRow> rows) throws X;
+    }
+}
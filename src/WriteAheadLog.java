@@ -0,0 +1,349 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only binary log of the mutations applied to a Sports instance.
+ * Each record is framed as [int length][int crc32][byte type][payload]; strings are
+ * an int UTF-8 byte count (-1 for null) followed by the bytes. Writers first enqueue
+ * a record, which fixes its position in the log, and then wait until it is durable:
+ * whichever waiter finds no flush in progress writes everything enqueued so far and
+ * forces it to disk once for the whole group (group commit). Replay stops at the
+ * first torn or corrupt record and truncates the file there.
+ */
+class WriteAheadLog implements Closeable {
+    private static final byte DEFINE_ACTIVITIES = 1;
+    private static final byte ADD_CATEGORY = 2;
+    private static final byte ADD_CATEGORIES = 3;
+    private static final byte ADD_PRODUCT = 4;
+    private static final byte ADD_PRODUCTS = 5;
+    private static final byte ADD_RATING = 6;
+    private static final byte ADD_RATINGS = 7;
+    private static final int HEADER = 2 * Integer.BYTES;
+
+    private final FileChannel channel;
+    // Guards the fields below
+    private final Object lock = new Object();
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private long enqueued;
+    private long durable;
+    private boolean flushing;
+    private IOException failure;
+
+    private WriteAheadLog(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Replays every intact record of {@code file} into {@code target}, truncates a
+     * torn tail and returns the log opened for appending further records.
+     */
+    static WriteAheadLog open(Path file, Sports target) throws IOException, SportsException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long end = replay(channel, target);
+            channel.truncate(end);
+            channel.position(end);
+            return new WriteAheadLog(channel);
+        } catch (IOException | SportsException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // Replays every intact record of file into target without opening the log for appending
+    static void replay(Path file, Sports target) throws IOException, SportsException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            replay(channel, target);
+        }
+    }
+
+    // Fixes the position of a record in the log and returns the ticket to wait for
+    long enqueue(byte[] record) {
+        synchronized (lock) {
+            pending.write(record, 0, record.length);
+            return ++enqueued;
+        }
+    }
+
+    // Returns once the record with the given ticket, and all before it, are on disk
+    void awaitDurable(long ticket) throws IOException {
+        while (true) {
+            byte[] batch;
+            long batchEnd;
+            synchronized (lock) {
+                while (durable < ticket && flushing && failure == null) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the log");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                if (durable >= ticket) {
+                    return;
+                }
+                flushing = true;
+                batch = pending.toByteArray();
+                pending = new ByteArrayOutputStream(Math.max(32, batch.length));
+                batchEnd = enqueued;
+            }
+            IOException error = null;
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(batch);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+            } catch (IOException ex) {
+                error = ex;
+            }
+            synchronized (lock) {
+                flushing = false;
+                if (error == null) {
+                    durable = batchEnd;
+                } else {
+                    failure = error;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        long last;
+        synchronized (lock) {
+            last = enqueued;
+        }
+        try {
+            awaitDurable(last);
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Record encoders
+
+    static byte[] defineActivities(String... activities) {
+        Encoder out = new Encoder(DEFINE_ACTIVITIES);
+        out.strings(activities);
+        return out.toRecord();
+    }
+
+    static byte[] addCategory(String name, String... activities) {
+        Encoder out = new Encoder(ADD_CATEGORY);
+        out.string(name);
+        out.strings(activities);
+        return out.toRecord();
+    }
+
+    static byte[] addCategories(List<Sports.CategoryRow> rows) {
+        Encoder out = new Encoder(ADD_CATEGORIES);
+        out.count(rows.size());
+        for (Sports.CategoryRow row : rows) {
+            out.string(row.name);
+            out.strings(row.activities.toArray(new String[0]));
+        }
+        return out.toRecord();
+    }
+
+    static byte[] addProduct(String name, String activity, String category) {
+        Encoder out = new Encoder(ADD_PRODUCT);
+        out.string(name);
+        out.string(activity);
+        out.string(category);
+        return out.toRecord();
+    }
+
+    static byte[] addProducts(List<Sports.ProductRow> rows) {
+        Encoder out = new Encoder(ADD_PRODUCTS);
+        out.count(rows.size());
+        for (Sports.ProductRow row : rows) {
+            out.string(row.name);
+            out.string(row.activity);
+            out.string(row.category);
+        }
+        return out.toRecord();
+    }
+
+    static byte[] addRating(String product, String user, int stars, String comment) {
+        Encoder out = new Encoder(ADD_RATING);
+        out.rating(product, user, stars, comment);
+        return out.toRecord();
+    }
+
+    static byte[] addRatings(List<Sports.RatingRow> rows) {
+        Encoder out = new Encoder(ADD_RATINGS);
+        out.count(rows.size());
+        for (Sports.RatingRow row : rows) {
+            out.rating(row.productName, row.userName, row.stars, row.comment);
+        }
+        return out.toRecord();
+    }
+
+    // Replay
+
+    private static long replay(FileChannel channel, Sports target) throws IOException, SportsException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (position + HEADER <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            int crc = header.getInt(Integer.BYTES);
+            if (length <= 0 || position + HEADER + length > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(length);
+            readFully(channel, body, position + HEADER);
+            CRC32 checksum = new CRC32();
+            checksum.update(body.array());
+            if ((int) checksum.getValue() != crc) {
+                break;
+            }
+            apply(new DataInputStream(new ByteArrayInputStream(body.array())), target);
+            position += HEADER + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void apply(DataInputStream in, Sports target) throws IOException, SportsException {
+        byte type = in.readByte();
+        switch (type) {
+            case DEFINE_ACTIVITIES:
+                target.defineActivities(readStrings(in));
+                break;
+            case ADD_CATEGORY:
+                target.addCategory(readString(in), readStrings(in));
+                break;
+            case ADD_CATEGORIES: {
+                int count = in.readInt();
+                List<Sports.CategoryRow> rows = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    rows.add(new Sports.CategoryRow(readString(in), readStrings(in)));
+                }
+                target.addCategories(rows);
+                break;
+            }
+            case ADD_PRODUCT:
+                target.addProduct(readString(in), readString(in), readString(in));
+                break;
+            case ADD_PRODUCTS: {
+                int count = in.readInt();
+                List<Sports.ProductRow> rows = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    rows.add(new Sports.ProductRow(readString(in), readString(in), readString(in)));
+                }
+                target.addProducts(rows);
+                break;
+            }
+            case ADD_RATING:
+                target.addRating(readString(in), readString(in), in.readByte(), readString(in));
+                break;
+            case ADD_RATINGS: {
+                int count = in.readInt();
+                List<Sports.RatingRow> rows = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    rows.add(new Sports.RatingRow(readString(in), readString(in), in.readByte(), readString(in)));
+                }
+                target.addRatings(rows);
+                break;
+            }
+            default:
+                throw new IOException("Unknown log record type: " + type);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] strings = new String[in.readInt()];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private static class Encoder extends ByteArrayOutputStream {
+        Encoder(byte type) {
+            super(64);
+            // Length and checksum placeholders, filled in by toRecord
+            count(0);
+            count(0);
+            write(type);
+        }
+
+        void count(int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void string(String value) {
+            if (value == null) {
+                count(-1);
+            } else {
+                byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+                count(utf8.length);
+                write(utf8, 0, utf8.length);
+            }
+        }
+
+        void strings(String[] values) {
+            count(values.length);
+            for (String value : values) {
+                string(value);
+            }
+        }
+
+        void rating(String product, String user, int stars, String comment) {
+            string(product);
+            string(user);
+            write(stars);
+            string(comment);
+        }
+
+        byte[] toRecord() {
+            byte[] record = toByteArray();
+            CRC32 checksum = new CRC32();
+            checksum.update(record, HEADER, record.length - HEADER);
+            ByteBuffer.wrap(record).putInt(0, record.length - HEADER).putInt(Integer.BYTES, (int) checksum.getValue());
+            return record;
+        }
+    }
+}